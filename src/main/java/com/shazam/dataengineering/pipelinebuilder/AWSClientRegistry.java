@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.datapipeline.DataPipelineClient;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import hudson.util.DaemonThreadFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long lived AWS clients, shared by every deployment using the same credentials and region.
+ * Each client holds its own connection pool, so creating them per request means
+ * new connections and TLS handshakes on every page interaction.
+ */
+public class AWSClientRegistry {
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 50 * 1000;
+    public static final long DEFAULT_CONNECTION_TTL = 60 * 1000;
+    // Files uploaded at the same time by each client
+    public static final int UPLOAD_THREADS = 10;
+    // Result pages fetched ahead at the same time, across all clients
+    public static final int PAGER_THREADS = 4;
+
+    private final ConcurrentMap<String, Clients> clients = new ConcurrentHashMap<String, Clients>();
+    private volatile ClientConfiguration configuration;
+    private final ThreadPoolExecutor pager = new ThreadPoolExecutor(PAGER_THREADS, PAGER_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+
+    public AWSClientRegistry() {
+        pager.allowCoreThreadTimeOut(true);
+        configure(DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECTION_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_CONNECTION_TTL);
+    }
+
+    /**
+     * Change connection settings. If they differ from the current ones, existing clients are retired
+     * and new ones are created on next use. Retired clients are shut down once their last user releases them.
+     *
+     * @param maxConnections    size of the connection pool of each client
+     * @param connectionTimeout milliseconds to wait for a connection to be established
+     * @param socketTimeout     milliseconds to wait for data on an open connection
+     * @param connectionTTL     milliseconds an idle connection is kept alive for reuse
+     */
+    public synchronized void configure(int maxConnections, int connectionTimeout, int socketTimeout, long connectionTTL) {
+        ClientConfiguration current = configuration;
+        if (current != null
+                && current.getMaxConnections() == maxConnections
+                && current.getConnectionTimeout() == connectionTimeout
+                && current.getSocketTimeout() == socketTimeout
+                && current.getConnectionTTL() == connectionTTL) {
+            return;
+        }
+
+        configuration = new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(connectionTimeout)
+                .withSocketTimeout(socketTimeout)
+                .withConnectionTTL(connectionTTL);
+        retireAll();
+    }
+
+    /**
+     * Clients for short lived use, such as a single request. Clients used for longer,
+     * like throughout a deployment, should be acquired instead, so they are not shut down meanwhile.
+     *
+     * @param credentials
+     * @param region AWS region name, or null or empty for the SDK default
+     * @return clients for the credentials and region, created on first use
+     */
+    public Clients get(AWSCredentials credentials, String region) {
+        String key = credentials.getAWSAccessKeyId() + "@" + (region == null ? "" : region);
+        Clients existing = clients.get(key);
+        if (existing != null && existing.isFor(credentials)) {
+            return existing;
+        }
+
+        Clients created = new Clients(credentials, region, configuration, pager);
+        if (existing == null ? clients.putIfAbsent(key, created) == null : clients.replace(key, existing, created)) {
+            if (existing != null) {
+                existing.retire();
+            }
+            return created;
+        }
+
+        // Another thread got there first
+        created.retire();
+        return get(credentials, region);
+    }
+
+    /**
+     * Clients which stay open until released, even if they are replaced meanwhile.
+     *
+     * @param credentials
+     * @param region AWS region name, or null or empty for the SDK default
+     * @return clients, which must be passed to {@link Clients#release()} once done with
+     */
+    public Clients acquire(AWSCredentials credentials, String region) {
+        while (true) {
+            Clients current = get(credentials, region);
+            // Fails only if the clients were retired since they were looked up
+            if (current.acquire()) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Retire all clients and stop fetching pages ahead. Clients in use are shut down once released.
+     */
+    public void shutdown() {
+        retireAll();
+        pager.shutdownNow();
+    }
+
+    private void retireAll() {
+        for (String key : clients.keySet()) {
+            Clients removed = clients.remove(key);
+            if (removed != null) {
+                removed.retire();
+            }
+        }
+    }
+
+    public static class Clients {
+        private final AWSCredentials credentials;
+        private final DataPipelineClient dataPipeline;
+        private final AmazonS3Client s3;
+        private final TransferManager transferManager;
+        private final PipelineCatalog catalog = new PipelineCatalog(PipelineCatalog.DEFAULT_TTL);
+        private final ExecutorService pager;
+        // Deployments holding the clients; replaced clients are shut down once there are none
+        private int users = 0;
+        private boolean retired = false;
+        private boolean closed = false;
+
+        private Clients(AWSCredentials credentials, String region, ClientConfiguration configuration,
+                        ExecutorService pager) {
+            this.credentials = credentials;
+            this.pager = pager;
+            this.dataPipeline = new DataPipelineClient(credentials, configuration);
+            this.s3 = new AmazonS3Client(credentials, configuration);
+            if (region != null && !region.isEmpty()) {
+                Region awsRegion = Region.getRegion(Regions.fromName(region));
+                dataPipeline.setRegion(awsRegion);
+                s3.setRegion(awsRegion);
+            }
+            this.transferManager = new TransferManager(s3,
+                    (ThreadPoolExecutor) Executors.newFixedThreadPool(UPLOAD_THREADS));
+        }
+
+        private boolean isFor(AWSCredentials other) {
+            String secret = credentials.getAWSSecretKey();
+            return secret == null ? other.getAWSSecretKey() == null : secret.equals(other.getAWSSecretKey());
+        }
+
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        /**
+         * Give back clients returned by {@link AWSClientRegistry#acquire(AWSCredentials, String)}.
+         */
+        public synchronized void release() {
+            users--;
+            closeIfUnused();
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            closeIfUnused();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void closeIfUnused() {
+            if (retired && users <= 0 && !closed) {
+                closed = true;
+                dataPipeline.shutdown();
+                // Also shuts down the S3 client
+                transferManager.shutdownNow();
+            }
+        }
+
+        public DataPipelineClient getDataPipeline() {
+            return dataPipeline;
+        }
+
+        public AmazonS3Client getS3() {
+            return s3;
+        }
+
+        /**
+         * @return uploader with a bounded number of concurrent uploads
+         */
+        public TransferManager getTransferManager() {
+            return transferManager;
+        }
+
+        /**
+         * @return executor shared by all clients, fetching result pages ahead
+         */
+        public ExecutorService getPager() {
+            return pager;
+        }
+
+        /**
+         * @return pipelines of the account, cached across deployments
+         */
+        public PipelineCatalog getCatalog() {
+            return catalog;
+        }
+    }
+}
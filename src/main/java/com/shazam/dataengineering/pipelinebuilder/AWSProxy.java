@@ -19,12 +19,17 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.datapipeline.DataPipelineClient;
 import com.amazonaws.services.datapipeline.model.*;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
 
 import java.io.File;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,16 +38,45 @@ import java.util.regex.Pattern;
  * Simplifies most of the interactions, wraps exceptions, helps in testing.
  */
 public class AWSProxy {
+    // Most ids accepted by a single DescribeObjects call
+    public static final int DESCRIBE_BATCH_SIZE = 25;
+
+    private static final String STATUS_FIELD = "@status";
+    private static final String RUNNING_STATUS = "RUNNING";
+    private static final Pattern S3_URL = Pattern.compile("://([^/]+)/(.*)");
+    // User metadata holding the MD5 of uploaded scripts, for objects whose ETag is not their digest
+    public static final String DIGEST_METADATA = "md5";
+
     private DataPipelineClient client;
+    private PipelineCatalog catalog;
+    private ExecutorService pager;
 
     public AWSProxy(DataPipelineClient dataPipelineClient) {
+        this(dataPipelineClient, null);
+    }
+
+    /**
+     * @param dataPipelineClient
+     * @param catalog cached pipeline list used to look up pipeline ids, or null to always list pipelines
+     */
+    public AWSProxy(DataPipelineClient dataPipelineClient, PipelineCatalog catalog) {
+        this(dataPipelineClient, catalog, null);
+    }
+
+    /**
+     * @param dataPipelineClient
+     * @param catalog cached pipeline list used to look up pipeline ids, or null to always list pipelines
+     * @param pager shared executor fetching the next page of results ahead, or null to fetch pages in turn
+     */
+    public AWSProxy(DataPipelineClient dataPipelineClient, PipelineCatalog catalog, ExecutorService pager) {
         this.client = dataPipelineClient;
+        this.catalog = catalog;
+        this.pager = pager;
     }
 
     public static boolean uploadFileToS3Url(AmazonS3 client, String url, File file) throws DeploymentException {
         try {
-            Pattern pattern = Pattern.compile("://([^/]+)/(.*)");
-            Matcher matcher = pattern.matcher(url);
+            Matcher matcher = S3_URL.matcher(url);
             if (matcher.find()) {
                 String bucketName = matcher.group(1);
                 String key = matcher.group(2);
@@ -57,10 +91,117 @@ public class AWSProxy {
         }
     }
 
+    /**
+     * Start uploading the file in the background. Large files are uploaded in parts.
+     *
+     * @param transferManager
+     * @param url
+     * @param file
+     * @param digest MD5 of the file stored with the object, or null
+     * @return the running upload, or null if the url is not a valid S3 url
+     * @throws DeploymentException
+     */
+    public static Upload startUploadToS3Url(TransferManager transferManager, String url, File file, String digest)
+            throws DeploymentException {
+        try {
+            Matcher matcher = S3_URL.matcher(url);
+            if (matcher.find()) {
+                PutObjectRequest request = new PutObjectRequest(matcher.group(1), matcher.group(2), file);
+                if (digest != null) {
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.addUserMetadata(DIGEST_METADATA, digest);
+                    request.setMetadata(metadata);
+                }
+                return transferManager.upload(request);
+            } else {
+                return null;
+            }
+        } catch (RuntimeException e) {
+            throw new DeploymentException(e);
+        }
+    }
+
+    /**
+     * Find urls which already hold an object with the expected MD5 digest.
+     * Objects are listed once per directory, so the listing doesn't grow with scripts of other builds.
+     * Objects uploaded in parts have no digest as ETag, and are checked by their metadata instead.
+     *
+     * @param client
+     * @param digests Map of S3 url to the expected digest
+     * @return urls whose object is unchanged
+     * @throws DeploymentException
+     */
+    public static Set<String> getUnchangedS3Urls(AmazonS3 client, Map<String, String> digests)
+            throws DeploymentException {
+        // Bucket to directory to key to url
+        HashMap<String, Map<String, Map<String, String>>> keysByBucket =
+                new HashMap<String, Map<String, Map<String, String>>>();
+        for (String url : digests.keySet()) {
+            Matcher matcher = S3_URL.matcher(url);
+            if (matcher.find()) {
+                Map<String, Map<String, String>> directories = keysByBucket.get(matcher.group(1));
+                if (directories == null) {
+                    directories = new HashMap<String, Map<String, String>>();
+                    keysByBucket.put(matcher.group(1), directories);
+                }
+                String key = matcher.group(2);
+                String directory = key.substring(0, key.lastIndexOf("/") + 1);
+                Map<String, String> keys = directories.get(directory);
+                if (keys == null) {
+                    keys = new HashMap<String, String>();
+                    directories.put(directory, keys);
+                }
+                keys.put(key, url);
+            }
+        }
+
+        HashSet<String> unchanged = new HashSet<String>();
+        try {
+            for (Map.Entry<String, Map<String, Map<String, String>>> bucket : keysByBucket.entrySet()) {
+                for (Map.Entry<String, Map<String, String>> directory : bucket.getValue().entrySet()) {
+                    Map<String, String> keys = directory.getValue();
+                    ObjectListing listing = client.listObjects(bucket.getKey(), directory.getKey());
+                    while (true) {
+                        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                            String url = keys.get(summary.getKey());
+                            if (url != null && isUnchanged(client, summary, digests.get(url))) {
+                                unchanged.add(url);
+                            }
+                        }
+
+                        if (!listing.isTruncated()) {
+                            break;
+                        }
+                        listing = client.listNextBatchOfObjects(listing);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new DeploymentException(e);
+        }
+
+        return unchanged;
+    }
+
+    private static boolean isUnchanged(AmazonS3 client, S3ObjectSummary summary, String digest) {
+        String eTag = summary.getETag();
+        if (digest.equalsIgnoreCase(eTag)) {
+            return true;
+        } else if (eTag != null && eTag.contains("-")) {
+            ObjectMetadata metadata = client.getObjectMetadata(summary.getBucketName(), summary.getKey());
+            return digest.equalsIgnoreCase(metadata.getUserMetadata().get(DIGEST_METADATA));
+        }
+
+        return false;
+    }
+
     public boolean removePipeline(String pipelineId) {
         try {
             DeletePipelineRequest request = new DeletePipelineRequest().withPipelineId(pipelineId);
             client.deletePipeline(request);
+            if (catalog != null) {
+                catalog.remove(pipelineId);
+            }
 
             return true;
         } catch (AmazonClientException e) {
@@ -78,6 +219,9 @@ public class AWSProxy {
                     .withName(name).withDescription(description)
                     .withUniqueId(UUID.randomUUID().toString()); // TODO persist through retries?
             CreatePipelineResult result = client.createPipeline(request);
+            if (catalog != null) {
+                catalog.add(name, result.getPipelineId());
+            }
             return result.getPipelineId();
         } catch (RuntimeException e) {
             throw new DeploymentException(e);
@@ -126,57 +270,140 @@ public class AWSProxy {
         return hasRunningTasks(pipelineId, null);
     }
 
+    /**
+     * Page through attempts the service reports as running, and confirm their status.
+     * With a pager, the next page is fetched while the current one is being described.
+     *
+     * @param pipelineId
+     * @param marker page to start from, or null for the first page
+     * @return
+     */
     public boolean hasRunningTasks(String pipelineId, String marker) {
+        QueryObjectsResult page = queryRunningAttempts(pipelineId, marker);
+        while (true) {
+            boolean hasMore = Boolean.TRUE.equals(page.getHasMoreResults());
+            Future<QueryObjectsResult> nextPage = null;
+            if (hasMore && pager != null) {
+                nextPage = pager.submit(new RunningAttemptsQuery(pipelineId, page.getMarker()));
+            }
+
+            boolean done = true;
+            try {
+                if (hasRunningTask(pipelineId, page.getIds())) {
+                    return true;
+                } else if (!hasMore) {
+                    return false;
+                }
+                done = false;
+            } finally {
+                // The page fetched ahead is not needed
+                if (done && nextPage != null) {
+                    nextPage.cancel(true);
+                }
+            }
+
+            page = nextPage != null ? getPage(nextPage) : queryRunningAttempts(pipelineId, page.getMarker());
+        }
+    }
+
+    private QueryObjectsResult queryRunningAttempts(String pipelineId, String marker) {
         QueryObjectsRequest request = new QueryObjectsRequest()
                 .withSphere("ATTEMPT")
-                .withPipelineId(pipelineId);
+                .withPipelineId(pipelineId)
+                .withQuery(new Query().withSelectors(new Selector()
+                        .withFieldName(STATUS_FIELD)
+                        .withOperator(new Operator().withType(OperatorType.EQ).withValues(RUNNING_STATUS))));
         if (marker != null) {
             request.setMarker(marker);
         }
 
-        QueryObjectsResult queryResult = client.queryObjects(request);
+        return client.queryObjects(request);
+    }
 
-        DescribeObjectsResult describeResult = describeTasks(pipelineId, queryResult.getIds());
-        List<com.amazonaws.services.datapipeline.model.PipelineObject> tasks = describeResult.getPipelineObjects();
-        for (com.amazonaws.services.datapipeline.model.PipelineObject task : tasks) {
-            for (Field field : task.getFields()) {
-                // Is task running?
-                if (field.getKey().equals("@status") && field.getStringValue().equals("RUNNING")) {
-                    return true;
+    private QueryObjectsResult getPage(Future<QueryObjectsResult> page) {
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AmazonClientException("Failed to query pipeline objects", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while querying pipeline objects", e);
+        }
+    }
+
+    private boolean hasRunningTask(String pipelineId, List<String> objectIds) {
+        for (int start = 0; start < objectIds.size(); start += DESCRIBE_BATCH_SIZE) {
+            List<String> batch = objectIds.subList(start, Math.min(start + DESCRIBE_BATCH_SIZE, objectIds.size()));
+            DescribeObjectsResult describeResult = describeTasks(pipelineId, batch);
+            for (com.amazonaws.services.datapipeline.model.PipelineObject task : describeResult.getPipelineObjects()) {
+                for (Field field : task.getFields()) {
+                    // Is task running?
+                    if (field.getKey().equals(STATUS_FIELD) && RUNNING_STATUS.equals(field.getStringValue())) {
+                        return true;
+                    }
                 }
             }
         }
 
-        if (queryResult.getHasMoreResults()) {
-            return hasRunningTasks(pipelineId, queryResult.getMarker());
-        } else {
-            return false;
+        return false;
+    }
+
+    private class RunningAttemptsQuery implements Callable<QueryObjectsResult> {
+        private final String pipelineId;
+        private final String marker;
+
+        public RunningAttemptsQuery(String pipelineId, String marker) {
+            this.pipelineId = pipelineId;
+            this.marker = marker;
+        }
+
+        public QueryObjectsResult call() {
+            return queryRunningAttempts(pipelineId, marker);
         }
     }
 
     public String getPipelineId(String nameRegex) throws DeploymentException {
-        return getPipelineId(nameRegex, null);
+        if (catalog == null) {
+            return getPipelineId(nameRegex, null);
+        }
+
+        try {
+            return catalog.getPipelineId(client, Pattern.compile(nameRegex));
+        } catch (RuntimeException e) {
+            throw new DeploymentException(e);
+        }
     }
 
+    /**
+     * Look up the pipeline id without the catalog, stopping at the first page with a match.
+     *
+     * @param nameRegex
+     * @param marker page to start from, or null for the first page
+     * @return pipeline id, or empty string if no pipeline matches
+     * @throws DeploymentException
+     */
     public String getPipelineId(String nameRegex, String marker) throws DeploymentException {
         try {
-            ListPipelinesRequest request = new ListPipelinesRequest();
-            if (marker != null) {
-                request.setMarker(marker);
-            }
+            Pattern pattern = Pattern.compile(nameRegex);
+            do {
+                ListPipelinesRequest request = new ListPipelinesRequest();
+                if (marker != null) {
+                    request.setMarker(marker);
+                }
 
-            ListPipelinesResult pipelineList = client.listPipelines(request);
-            for (PipelineIdName pipeline : pipelineList.getPipelineIdList()) {
-                if (pipeline.getName().matches(nameRegex)) {
-                    return pipeline.getId();
+                ListPipelinesResult pipelineList = client.listPipelines(request);
+                String pipelineId = PipelineCatalog.findPipelineId(pipelineList.getPipelineIdList(), pattern);
+                if (!pipelineId.isEmpty()) {
+                    return pipelineId;
                 }
-            }
 
-            if (pipelineList.getHasMoreResults()) {
-                return getPipelineId(nameRegex, pipelineList.getMarker());
-            } else {
-                return "";
-            }
+                marker = Boolean.TRUE.equals(pipelineList.getHasMoreResults()) ? pipelineList.getMarker() : null;
+            } while (marker != null);
+
+            return "";
         } catch (RuntimeException e) {
             throw new DeploymentException(e);
         }
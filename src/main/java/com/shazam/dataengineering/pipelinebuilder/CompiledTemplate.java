@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Pipeline definition split into literal text and ${key} token slots.
+ * The text is scanned once when compiled, after which it can be rendered
+ * for any number of substitution maps without searching it again.
+ */
+public class CompiledTemplate {
+    private static final String TOKEN_START = "${";
+    private static final String TOKEN_END = "}";
+
+    // literals[i] precedes tokens[i]; the last literal follows the last token
+    private final String[] literals;
+    private final String[] tokens;
+    private final Set<String> keys;
+    private final int literalLength;
+
+    private CompiledTemplate(List<String> literals, List<String> tokens) {
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.tokens = tokens.toArray(new String[tokens.size()]);
+        this.keys = Collections.unmodifiableSet(new LinkedHashSet<String>(tokens));
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Split the text into literals and tokens.
+     * Empty and unterminated tokens are kept as literal text.
+     * A token start followed by another one before it is closed, as in ${a:-${b}}, is literal text,
+     * so the inner token is still substituted.
+     *
+     * @param text
+     * @return
+     */
+    public static CompiledTemplate compile(String text) {
+        ArrayList<String> literals = new ArrayList<String>();
+        ArrayList<String> tokens = new ArrayList<String>();
+        int position = 0;
+        int start = text.indexOf(TOKEN_START);
+
+        while (start >= 0) {
+            int end = text.indexOf(TOKEN_END, start + TOKEN_START.length());
+            if (end < 0) {
+                break;
+            }
+
+            int nested = text.indexOf(TOKEN_START, start + TOKEN_START.length());
+            if (nested >= 0 && nested < end) {
+                start = nested;
+                continue;
+            }
+
+            if (end > start + TOKEN_START.length()) {
+                literals.add(text.substring(position, start));
+                tokens.add(text.substring(start + TOKEN_START.length(), end));
+                position = end + TOKEN_END.length();
+            }
+            start = text.indexOf(TOKEN_START, end + TOKEN_END.length());
+        }
+        literals.add(text.substring(position));
+
+        return new CompiledTemplate(literals, tokens);
+    }
+
+    /**
+     * @return keys of all tokens, in order of first appearance
+     */
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param substitutions
+     * @return keys referenced by the template which have no value in the passed in map
+     */
+    public Set<String> getUnresolvedKeys(Map<String, String> substitutions) {
+        LinkedHashSet<String> unresolved = new LinkedHashSet<String>();
+        for (String key : keys) {
+            if (!substitutions.containsKey(key)) {
+                unresolved.add(key);
+            }
+        }
+
+        return unresolved;
+    }
+
+    /**
+     * @param substitutions
+     * @return keys of tokens which have no value in the passed in map, once for every occurrence
+     */
+    public List<String> getUnresolvedTokens(Map<String, String> substitutions) {
+        ArrayList<String> unresolved = new ArrayList<String>();
+        for (String token : tokens) {
+            if (!substitutions.containsKey(token)) {
+                unresolved.add(token);
+            }
+        }
+
+        return unresolved;
+    }
+
+    /**
+     * Replace tokens by their values. Tokens without a value are left in place.
+     *
+     * @param substitutions
+     * @return
+     */
+    public String render(Map<String, String> substitutions) {
+        StringBuilder result = new StringBuilder(literalLength + 16 * tokens.length);
+        try {
+            render(substitutions, result);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Stream the rendered text into the passed in output, without building it in memory.
+     *
+     * @param substitutions
+     * @param out
+     * @throws IOException
+     */
+    public void render(Map<String, String> substitutions, Appendable out) throws IOException {
+        for (int i = 0; i < tokens.length; i++) {
+            out.append(literals[i]);
+            String value = substitutions.get(tokens[i]);
+            if (value != null) {
+                out.append(value);
+            } else {
+                out.append(TOKEN_START).append(tokens[i]).append(TOKEN_END);
+            }
+        }
+        out.append(literals[tokens.length]);
+    }
+
+    /**
+     * Read the rendered text segment by segment, without building it in memory.
+     *
+     * @param substitutions
+     * @return
+     */
+    public Reader reader(Map<String, String> substitutions) {
+        return new TemplateReader(substitutions);
+    }
+
+    private class TemplateReader extends Reader {
+        private final Map<String, String> substitutions;
+        // Even segments are literals, odd segments are tokens
+        private int segment = 0;
+        private String current = literals[0];
+        private int offset = 0;
+
+        public TemplateReader(Map<String, String> substitutions) {
+            this.substitutions = substitutions;
+        }
+
+        @Override
+        public int read(char[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (current != null && offset >= current.length()) {
+                nextSegment();
+            }
+            if (current == null) {
+                return -1;
+            }
+
+            int count = Math.min(len, current.length() - offset);
+            current.getChars(offset, offset + count, buffer, off);
+            offset += count;
+
+            return count;
+        }
+
+        private void nextSegment() {
+            segment += 1;
+            offset = 0;
+            if (segment > 2 * tokens.length) {
+                current = null;
+            } else if (segment % 2 == 0) {
+                current = literals[segment / 2];
+            } else {
+                String token = tokens[segment / 2];
+                String value = substitutions.get(token);
+                current = value != null ? value : TOKEN_START + token + TOKEN_END;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
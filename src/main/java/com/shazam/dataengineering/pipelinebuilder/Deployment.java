@@ -17,12 +17,15 @@ package com.shazam.dataengineering.pipelinebuilder;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.TimeZone;
 
 /**
  * Deployment Data Transfer Object. Converts to and from a JSON entry.
@@ -34,8 +37,20 @@ public class Deployment {
     private boolean status;
     private Date date;
     private String pipelineId;
+    // Not recorded by older logs
+    private String pipelineFile;
     private List<String> messages;
-    private static final DateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+    // Start of the deployment in the log, or -1 when not read from one
+    private long position = -1;
+    // DateFormat is not thread safe, and history is rendered by many request threads at once
+    private static final ThreadLocal<DateFormat> isoFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
 
     public Deployment(String username, boolean status, String pipelineId, Date date, List<String> messages) {
         this.username = username;
@@ -45,10 +60,31 @@ public class Deployment {
         this.pipelineId = pipelineId;
     }
 
+    public Deployment(String username, boolean status, String pipelineFile, String pipelineId, Date date,
+                      List<String> messages) {
+        this(username, status, pipelineId, date, messages);
+        this.pipelineFile = pipelineFile;
+    }
+
+    /**
+     * Summary of a deployment read from the log, without its messages.
+     *
+     * @param username
+     * @param status
+     * @param pipelineId
+     * @param date
+     * @param position start of the deployment in the log
+     */
+    public Deployment(String username, boolean status, String pipelineId, Date date, long position) {
+        this(username, status, pipelineId, date, (List<String>) null);
+        this.position = position;
+    }
+
     public Deployment(JSONObject obj) {
         this.username = (String) obj.get("username");
         this.status = (Boolean) obj.get("status");
         this.pipelineId = (String) obj.get("pipelineId");
+        this.pipelineFile = (String) obj.get("pipelineFile");
         this.date = new Date((Long) obj.get("date"));
         JSONArray messageArray = (JSONArray) obj.get("messages");
         this.messages = new ArrayList<String>();
@@ -59,20 +95,45 @@ public class Deployment {
 
     public JSONObject toJSON() {
         JSONArray messageArray = new JSONArray();
-        for (String message : messages) {
-            messageArray.add(message);
+        if (messages != null) {
+            for (String message : messages) {
+                messageArray.add(message);
+            }
         }
 
         JSONObject deployment = new JSONObject();
         deployment.put("username", username);
         deployment.put("status", status);
         deployment.put("pipelineId", pipelineId);
+        if (pipelineFile != null) {
+            deployment.put("pipelineFile", pipelineFile);
+        }
         deployment.put("date", date.getTime());
         deployment.put("messages", messageArray);
 
         return deployment;
     }
 
+    /**
+     * Same fields as {@link #toJSON()}, in a fixed order with messages last.
+     *
+     * @return
+     */
+    public String toJSONString() {
+        LinkedHashMap<String, Object> deployment = new LinkedHashMap<String, Object>();
+        JSONObject json = toJSON();
+        deployment.put("username", json.get("username"));
+        deployment.put("status", json.get("status"));
+        deployment.put("pipelineId", json.get("pipelineId"));
+        if (pipelineFile != null) {
+            deployment.put("pipelineFile", pipelineFile);
+        }
+        deployment.put("date", json.get("date"));
+        deployment.put("messages", json.get("messages"));
+
+        return JSONValue.toJSONString(deployment);
+    }
+
     public boolean isSuccess() {
         return status;
     }
@@ -90,14 +151,33 @@ public class Deployment {
     }
 
     public String getISODate() {
-        return isoFormat.format(date);
+        return isoFormat.get().format(date);
     }
 
     public String getPipelineId() {
         return pipelineId;
     }
 
+    public String getPipelineFile() {
+        return pipelineFile;
+    }
+
+    /**
+     * @return messages of the deployment, or null for a summary
+     */
     public List<String> getMessages() {
         return messages;
     }
+
+    public boolean isSummary() {
+        return messages == null;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    void setPosition(long position) {
+        this.position = position;
+    }
 }
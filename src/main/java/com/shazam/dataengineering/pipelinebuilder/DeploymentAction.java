@@ -20,27 +20,43 @@ import com.amazonaws.services.datapipeline.DataPipelineClient;
 import com.amazonaws.services.datapipeline.model.ValidatePipelineDefinitionResult;
 import com.amazonaws.services.datapipeline.model.ValidationError;
 import com.amazonaws.services.datapipeline.model.ValidationWarning;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
-import hudson.FilePath;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import hudson.Util;
 import hudson.model.*;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import javax.servlet.ServletException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 public class DeploymentAction implements Action {
     private static final String LOG_FILENAME = "deployment.log";
+    private static final int HISTORY_PAGE_SIZE = 25;
+    // Shared by all builds, a confirm and deploy otherwise parses the same definition several times
+    private static final PipelineObjectCache PIPELINE_CACHE =
+            new PipelineObjectCache(PipelineObjectCache.DEFAULT_MAX_BYTES);
+    public static final int DEFAULT_DEPLOYMENT_THREADS = 4;
 
     private AbstractProject project;
     private AbstractBuild build;
     private Map<S3Environment, String> s3Urls;
+    private Map<String, String> scriptDigests;
     private List<Run.Artifact> artifacts;
     private AWSCredentials credentials;
 
@@ -49,15 +65,60 @@ public class DeploymentAction implements Action {
     private PipelineObject pipelineObject;
     private DeploymentException lastException;
     private List<String> clientMessages = new ArrayList<String>();
+    // Pipeline file to its scripts and their S3 urls, built from s3Urls on first use
+    private transient Map<String, Map<String, String>> scriptsByPipeline;
+    // Latest deployment of each pipeline file
+    private transient ConcurrentMap<String, DeploymentAction> deployments;
+    private transient String deployingUser;
+    private transient volatile boolean running;
+    private transient volatile boolean succeeded;
+    private transient PipelineManifest manifest;
+    private transient boolean manifestLoaded;
 
     public DeploymentAction(AbstractBuild build, Map<S3Environment, String> s3Urls, AWSCredentials awsCredentials) {
+        this(build, s3Urls, new HashMap<String, String>(), awsCredentials);
+    }
+
+    /**
+     * @param build
+     * @param s3Urls
+     * @param scriptDigests  Map of script name to MD5 digest, used to skip scripts already deployed
+     * @param awsCredentials
+     */
+    public DeploymentAction(AbstractBuild build, Map<S3Environment, String> s3Urls,
+                            Map<String, String> scriptDigests, AWSCredentials awsCredentials) {
         this.project = build.getProject();
         this.build = build;
         this.s3Urls = s3Urls;
+        this.scriptDigests = scriptDigests;
         this.artifacts = build.getArtifacts();
         this.credentials = awsCredentials;
     }
 
+    /**
+     * Single deployment of a pipeline, run in the background.
+     * Shares configuration with the parent, but has its own copy of the confirmed pipeline and its own messages.
+     *
+     * @param parent
+     */
+    private DeploymentAction(DeploymentAction parent) {
+        this.project = parent.project;
+        this.build = parent.build;
+        this.s3Urls = parent.s3Urls;
+        this.scriptDigests = parent.scriptDigests;
+        this.scriptsByPipeline = parent.scriptsByPipeline;
+        this.artifacts = parent.artifacts;
+        this.credentials = parent.credentials;
+        this.pipelineToRemoveId = parent.pipelineToRemoveId;
+        this.pipelineFile = parent.pipelineFile;
+        // The parent's pipeline is modified by the next confirmation
+        this.pipelineObject = new PipelineObject(parent.pipelineObject);
+        this.clientMessages = new CopyOnWriteArrayList<String>(parent.clientMessages);
+
+        User currentUser = User.current();
+        this.deployingUser = currentUser != null ? currentUser.getFullName() : null;
+    }
+
     public String getIconFileName() {
         return "/plugin/pipeline-builder/icons/pipeline-22x22.png";
     }
@@ -99,14 +160,26 @@ public class DeploymentAction implements Action {
     }
 
     public List<Deployment> getDeployments() {
-        FilePath newPath = new FilePath(new FilePath(build.getArtifactsDir()), LOG_FILENAME);
         try {
-            String logContent = newPath.readToString();
+            return DeploymentLog.read(new File(build.getArtifactsDir(), LOG_FILENAME));
+        } catch (IOException e) {
+            // Ignore
+        }
 
-            if (!logContent.isEmpty()) {
-                DeploymentLog dto = new DeploymentLog(logContent);
-                return dto.getAll();
-            }
+        return Collections.EMPTY_LIST;
+    }
+
+    /**
+     * @param offset number of newest deployments to skip
+     * @return page of deployment summaries, newest first, without their messages,
+     * followed by the next older deployment if there is one
+     * @see #hasOlderDeployments(java.util.List)
+     */
+    public List<Deployment> getDeploymentHistory(int offset) {
+        try {
+            // One more than shown, to know if there is an older page without reading it
+            return DeploymentLog.readHistory(new File(build.getArtifactsDir(), LOG_FILENAME), offset,
+                    HISTORY_PAGE_SIZE + 1);
         } catch (IOException e) {
             // Ignore
         }
@@ -114,6 +187,101 @@ public class DeploymentAction implements Action {
         return Collections.EMPTY_LIST;
     }
 
+    /**
+     * @param history as returned by {@link #getDeploymentHistory(int)}
+     * @return true if there are deployments older than the page
+     */
+    public boolean hasOlderDeployments(List<Deployment> history) {
+        return history.size() > HISTORY_PAGE_SIZE;
+    }
+
+    public int getHistoryPageSize() {
+        return HISTORY_PAGE_SIZE;
+    }
+
+    public int getHistoryOffset() {
+        return Math.max(0, (int) getLongParameter("historyOffset", 0));
+    }
+
+    /**
+     * @return deployment expanded on the history page, with its messages, or null if none is
+     */
+    public Deployment getExpandedDeployment() {
+        long position = getLongParameter("expand", -1);
+        if (position < 0) {
+            return null;
+        }
+
+        try {
+            return DeploymentLog.readAt(new File(build.getArtifactsDir(), LOG_FILENAME), position);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deployments of every build of the job, filtered by the pipeline, from and to request parameters.
+     * Dates are in the yyyy-MM-dd format, and both are inclusive.
+     *
+     * @return matching deployments, newest first
+     */
+    public List<DeploymentIndex.Entry> getJobDeployments() {
+        StaplerRequest request = Stapler.getCurrentRequest();
+        String pipeline = request == null ? null : request.getParameter("pipeline");
+        try {
+            List<DeploymentIndex.Entry> entries = DeploymentIndex.forProject(project)
+                    .query(pipeline, getDateParameter("from", 0), getDateParameter("to", 1));
+            Collections.reverse(entries);
+            return entries;
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @param daysAfter days added to the date
+     * @return start of the day passed in the parameter, or null if it is missing or invalid
+     */
+    private Date getDateParameter(String name, int daysAfter) {
+        StaplerRequest request = Stapler.getCurrentRequest();
+        String value = request == null ? null : request.getParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setLenient(false);
+        try {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(format.parse(value.trim()));
+            calendar.add(Calendar.DATE, daysAfter);
+            return calendar.getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private long getLongParameter(String name, long defaultValue) {
+        StaplerRequest request = Stapler.getCurrentRequest();
+        String value = request == null ? null : request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return cache of parsed pipeline artifacts, shared by all deployment actions
+     */
+    public static PipelineObjectCache getPipelineCache() {
+        return PIPELINE_CACHE;
+    }
+
     public BallColor getBallColorRed() {
         return BallColor.RED;
     }
@@ -131,18 +299,30 @@ public class DeploymentAction implements Action {
     }
 
     public boolean oldPipelineHasRunningTasks() {
-        DataPipelineClient client = new DataPipelineClient(credentials);
-        AWSProxy proxy = new AWSProxy(client);
-
-        return proxy.hasRunningTasks(pipelineToRemoveId);
+        AWSClientRegistry.Clients clients = acquireClients();
+        try {
+            AWSProxy proxy = getProxy(getDataPipelineClient(clients));
+            return proxy.hasRunningTasks(pipelineToRemoveId);
+        } finally {
+            releaseClients(clients);
+        }
     }
 
     public List<String> getPipelines() {
         ArrayList<String> pipelines = new ArrayList<String>();
-        if (artifacts != null && artifacts.size() > 0) {
+        List<PipelineManifest.Entry> entries = getManifestEntries();
+        if (entries != null) {
+            for (PipelineManifest.Entry entry : entries) {
+                pipelines.add(entry.getFileName());
+            }
+        } else if (artifacts != null && artifacts.size() > 0) {
             for (Run.Artifact artifact : artifacts) {
+                // Scripts, jars and graphs are archived as well
+                if (!artifact.getFileName().endsWith(".json")) {
+                    continue;
+                }
                 try {
-                    PipelineObject object = new PipelineObject(new FilePath(artifact.getFile()).readToString());
+                    PipelineObject object = PIPELINE_CACHE.get(artifact.getFile());
                     if (object.isValid()) {
                         pipelines.add(artifact.getFileName());
                     }
@@ -155,9 +335,20 @@ public class DeploymentAction implements Action {
         return pipelines;
     }
 
-    // TODO: Multiple schedule objects per pipeline
+    // Earliest schedule of the pipeline. Other schedules keep their offset from it when deployed.
     public String getScheduledDate() throws IOException {
         PipelineObject pipelineObject = this.pipelineObject;
+        List<PipelineManifest.Entry> entries = getManifestEntries();
+        if (pipelineObject == null && entries != null) {
+            PipelineManifest.Entry entry = null;
+            for (PipelineManifest.Entry candidate : entries) {
+                if (pipelineFile == null ? entry == null : pipelineFile.equals(candidate.getFileName())) {
+                    entry = candidate;
+                }
+            }
+            return entry != null ? entry.getScheduleDate() : "";
+        }
+
         // TODO: Change based on the value of pipeline selector
         if (pipelineObject == null && artifacts.size() > 0) {
             if (pipelineFile != null) {
@@ -173,8 +364,7 @@ public class DeploymentAction implements Action {
                 }
 
                 if (artifact != null) {
-                    pipelineObject = new PipelineObject(
-                            new FilePath(artifact.getFile()).readToString());
+                    pipelineObject = PIPELINE_CACHE.get(artifact.getFile());
                 }
             }
         }
@@ -186,7 +376,12 @@ public class DeploymentAction implements Action {
         }
     }
 
-    public void doConfirmProcess(StaplerRequest req, StaplerResponse resp) throws IOException, ServletException {
+    /**
+     * Confirmation state is shared by everyone viewing the build, so confirming and deploying
+     * hold the action's lock, and the deployment is checked against the confirmed pipeline.
+     */
+    public synchronized void doConfirmProcess(StaplerRequest req, StaplerResponse resp)
+            throws IOException, ServletException {
         // Clear out previous warnings
         clientMessages.clear();
 
@@ -212,8 +407,9 @@ public class DeploymentAction implements Action {
         }
 
         // Find previously deployed pipeline.
+        AWSClientRegistry.Clients clients = acquireClients();
         try {
-            DataPipelineClient client = new DataPipelineClient(credentials);
+            DataPipelineClient client = getDataPipelineClient(clients);
 
             pipelineToRemoveId = getPipelineId(pipelineFile, client);
             if (!pipelineToRemoveId.isEmpty() && oldPipelineHasRunningTasks()) {
@@ -221,15 +417,102 @@ public class DeploymentAction implements Action {
             }
         } catch (DeploymentException e) {
             pipelineToRemoveId = "";
+        } finally {
+            releaseClients(clients);
         }
 
         req.getView(this, "confirm").forward(req, resp);
     }
 
-    public synchronized void doDeploy(StaplerRequest req, StaplerResponse resp) throws ServletException, IOException {
-        DataPipelineClient client = new DataPipelineClient(credentials);
+    /**
+     * Start deploying the confirmed pipeline in the background, and redirect to its progress page.
+     * Pipelines are deployed one at a time per pipeline file, different files can be deployed at once.
+     */
+    public void doDeploy(StaplerRequest req, StaplerResponse resp) throws ServletException, IOException {
+        DeploymentAction deployment;
+        synchronized (this) {
+            String confirmedFile = req.getParameter("pipeline");
+            String confirmedDate = req.getParameter("scheduleDate");
+            if (pipelineFile == null || pipelineObject == null) {
+                clientMessages.add("[ERROR] No pipeline has been confirmed for deployment");
+                req.getView(this, "error").forward(req, resp);
+                return;
+            } else if (!pipelineFile.equals(confirmedFile)
+                    || !pipelineObject.getScheduleDate().equals(confirmedDate)) {
+                clientMessages.add("[ERROR] Another pipeline was confirmed meanwhile. Please confirm again.");
+                req.getView(this, "error").forward(req, resp);
+                return;
+            }
+
+            deployment = new DeploymentAction(this);
+        }
+
+        deployment.running = true;
+        String file = deployment.pipelineFile;
+        DeploymentAction previous = getDeploymentMap().get(file);
+        boolean started = previous == null
+                ? getDeploymentMap().putIfAbsent(file, deployment) == null
+                : !previous.isRunning() && getDeploymentMap().replace(file, previous, deployment);
+        if (!started) {
+            clientMessages.add("[ERROR] Deployment of " + file + " is already in progress");
+            req.getView(this, "error").forward(req, resp);
+            return;
+        }
+
+        final DeploymentAction task = deployment;
+        Runnable run = new Runnable() {
+            public void run() {
+                task.deploy();
+            }
+        };
+        ExecutorService executor = getDeploymentExecutor();
+        if (executor == null) {
+            run.run();
+        } else {
+            try {
+                executor.submit(run);
+            } catch (RejectedExecutionException e) {
+                deployment.running = false;
+                clientMessages.add("[ERROR] Deployments are not accepted while Jenkins is shutting down");
+                req.getView(this, "error").forward(req, resp);
+                return;
+            }
+        }
+
+        resp.sendRedirect("deployment/" + Util.rawEncode(file) + "/progress");
+    }
+
+    /**
+     * Stapler binds this to deployment/{pipelineFile}, where the progress page is served.
+     *
+     * @param pipelineFile
+     * @return the latest deployment of the pipeline file, or null if it was not deployed from this build
+     */
+    public DeploymentAction getDeployment(String pipelineFile) {
+        return getDeploymentMap().get(pipelineFile);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    private synchronized ConcurrentMap<String, DeploymentAction> getDeploymentMap() {
+        if (deployments == null) {
+            deployments = new ConcurrentHashMap<String, DeploymentAction>();
+        }
+        return deployments;
+    }
+
+    private void deploy() {
         Date start = new Date();
+        // Held for the whole deployment, so a configuration change doesn't shut the clients down midway
+        AWSClientRegistry.Clients clients = acquireClients();
         try {
+            DataPipelineClient client = getDataPipelineClient(clients);
             String pipelineId = createNewPipeline(client);
             validateNewPipeline(pipelineId, client);
             uploadNewPipeline(pipelineId, client);
@@ -237,46 +520,179 @@ public class DeploymentAction implements Action {
             removeOldPipeline(client);
             activateNewPipeline(pipelineId, client);
             writeReport(start, pipelineId, true);
-            req.getView(this, "report").forward(req, resp);
+            succeeded = true;
         } catch (DeploymentException e) {
             if (e.getCause() != null) {
                 clientMessages.add("[ERROR] " + e.getCause().getMessage());
             }
             writeReport(start, "", false);
-            req.getView(this, "error").forward(req, resp);
+        } catch (RuntimeException e) {
+            clientMessages.add("[ERROR] " + e.getMessage());
+            writeReport(start, "", false);
+        } finally {
+            releaseClients(clients);
+            running = false;
         }
     }
 
     private void deployScriptsToS3() throws DeploymentException {
+        Map<String, String> scripts = getScriptsForPipeline(pipelineFile);
+        if (scripts.isEmpty()) {
+            return;
+        }
+
         String pathPrefix = build.getArtifactsDir().getPath() + "/scripts/";
-        AmazonS3 s3Client = new AmazonS3Client(credentials);
-        for (S3Environment env : s3Urls.keySet()) {
-            if (env.pipelineName.equals(pipelineFile)) {
-                String filename = env.scriptName;
+        boolean failFast = isFailFastUploads();
+        AWSClientRegistry.Clients clients = acquireClients();
+        TransferManager transferManager = clients != null
+                ? clients.getTransferManager() : new TransferManager(new AmazonS3Client(credentials));
+
+        LinkedHashMap<String, Upload> uploads = new LinkedHashMap<String, Upload>();
+        int failures = 0;
+        try {
+            Set<String> unchanged = getUnchangedScriptUrls(transferManager.getAmazonS3Client(), scripts);
+            for (Map.Entry<String, String> script : scripts.entrySet()) {
+                String filename = script.getKey();
                 File file = new File(pathPrefix + filename);
-                if (file.exists()) {
-                    String url = s3Urls.get(env);
-                    clientMessages.add(String.format("[INFO] Uploading %s to %s", filename, url));
-                    boolean result = AWSProxy.uploadFileToS3Url(s3Client, url, file);
-                    if (result) {
-                        clientMessages.add(String.format("[INFO] Upload successful!"));
+                if (!file.exists()) {
+                    clientMessages.add(String.format("[ERROR] Unable to find %s in artifacts", filename));
+                    failures++;
+                } else if (unchanged.contains(script.getValue())) {
+                    clientMessages.add(String.format("[INFO] %s is unchanged at %s, skipping upload",
+                            filename, script.getValue()));
+                } else {
+                    clientMessages.add(String.format("[INFO] Uploading %s to %s", filename, script.getValue()));
+                    Upload upload = AWSProxy.startUploadToS3Url(transferManager, script.getValue(), file,
+                            getScriptDigest(filename));
+                    if (upload != null) {
+                        uploads.put(filename, upload);
                     } else {
-                        clientMessages.add(String.format("[ERROR] Upload failed!"));
-                        throw new DeploymentException();
+                        clientMessages.add(String.format("[ERROR] Upload of %s failed: invalid S3 url", filename));
+                        failures++;
                     }
-                } else {
-                    clientMessages.add(String.format("[ERROR] Unable to find %s in artifacts", filename));
+                }
+
+                if (failFast && failures > 0) {
                     throw new DeploymentException();
                 }
             }
+
+            for (Map.Entry<String, Upload> upload : uploads.entrySet()) {
+                if (waitForUpload(upload.getKey(), upload.getValue())) {
+                    clientMessages.add(String.format("[INFO] Upload of %s successful!", upload.getKey()));
+                } else {
+                    failures++;
+                    if (failFast) {
+                        throw new DeploymentException();
+                    }
+                }
+            }
+        } finally {
+            for (Upload upload : uploads.values()) {
+                if (!upload.isDone()) {
+                    upload.abort();
+                }
+            }
+            if (clients == null) {
+                transferManager.shutdownNow();
+            } else {
+                releaseClients(clients);
+            }
+        }
+
+        if (failures > 0) {
+            clientMessages.add(String.format("[ERROR] %d of %d scripts failed to upload", failures, scripts.size()));
+            throw new DeploymentException();
         }
     }
 
+    /**
+     * @param scripts Map of script name to S3 url
+     * @return urls already holding the same content, empty if they can't be checked
+     */
+    private Set<String> getUnchangedScriptUrls(AmazonS3 s3Client, Map<String, String> scripts) {
+        HashMap<String, String> digests = new HashMap<String, String>();
+        for (Map.Entry<String, String> script : scripts.entrySet()) {
+            String digest = getScriptDigest(script.getKey());
+            if (digest != null) {
+                digests.put(script.getValue(), digest);
+            }
+        }
+
+        if (digests.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        try {
+            return AWSProxy.getUnchangedS3Urls(s3Client, digests);
+        } catch (DeploymentException e) {
+            clientMessages.add("[WARN] Unable to compare scripts with S3, uploading all of them: "
+                    + e.getCause().getMessage());
+            return Collections.emptySet();
+        }
+    }
+
+    private String getScriptDigest(String scriptName) {
+        // Builds from before digests were recorded have none
+        return scriptDigests == null ? null : scriptDigests.get(scriptName);
+    }
+
+    private boolean waitForUpload(String filename, Upload upload) {
+        try {
+            upload.waitForCompletion();
+            return true;
+        } catch (AmazonClientException e) {
+            clientMessages.add(String.format("[ERROR] Upload of %s failed: %s", filename, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clientMessages.add(String.format("[ERROR] Interrupted while uploading %s", filename));
+        }
+
+        return false;
+    }
+
+    /**
+     * @param pipelineName
+     * @return Map of script name to S3 url for every script used by the pipeline
+     */
+    private Map<String, String> getScriptsForPipeline(String pipelineName) {
+        if (scriptsByPipeline == null) {
+            HashMap<String, Map<String, String>> index = new HashMap<String, Map<String, String>>();
+            for (Map.Entry<S3Environment, String> entry : s3Urls.entrySet()) {
+                Map<String, String> scripts = index.get(entry.getKey().pipelineName);
+                if (scripts == null) {
+                    scripts = new LinkedHashMap<String, String>();
+                    index.put(entry.getKey().pipelineName, scripts);
+                }
+                scripts.put(entry.getKey().scriptName, entry.getValue());
+            }
+            scriptsByPipeline = index;
+        }
+
+        Map<String, String> scripts = scriptsByPipeline.get(pipelineName);
+        return scripts == null ? Collections.<String, String>emptyMap() : scripts;
+    }
+
+    private boolean isFailFastUploads() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null
+                || !jenkins.getDescriptorByType(PipelineBuilder.DescriptorImpl.class).isCollectUploadFailures();
+    }
+
     private PipelineObject getPipelineByName(String pipelineName) throws IOException {
+        PipelineManifest manifest = getManifest();
+        if (manifest != null) {
+            File file = new File(build.getArtifactsDir(), pipelineName);
+            if (pipelineName.isEmpty() || manifest.get(pipelineName) == null || !file.exists()) {
+                return null;
+            }
+            return PIPELINE_CACHE.get(file);
+        }
+
         if (!pipelineName.isEmpty() && artifacts != null && artifacts.size() > 0) {
             for (Run.Artifact artifact : artifacts) {
                 if (artifact.getFileName().equals(pipelineName)) {
-                    return new PipelineObject(new FilePath(artifact.getFile()).readToString());
+                    return PIPELINE_CACHE.get(artifact.getFile());
                 }
             }
         }
@@ -284,12 +700,48 @@ public class DeploymentAction implements Action {
         return null;
     }
 
+    /**
+     * @return pipelines generated by the build, or null for builds made before they were recorded,
+     * in which case artifacts are searched instead
+     */
+    private synchronized PipelineManifest getManifest() {
+        if (!manifestLoaded) {
+            try {
+                manifest = PipelineManifest.read(new File(build.getRootDir(), PipelineManifest.FILENAME));
+            } catch (IOException e) {
+                manifest = null;
+            }
+            manifestLoaded = true;
+        }
+
+        return manifest;
+    }
+
+    /**
+     * @return manifest entries whose pipeline is still in the artifacts, which may have been deleted since,
+     * or null for builds without a manifest
+     */
+    private List<PipelineManifest.Entry> getManifestEntries() {
+        PipelineManifest manifest = getManifest();
+        if (manifest == null) {
+            return null;
+        }
+
+        ArrayList<PipelineManifest.Entry> entries = new ArrayList<PipelineManifest.Entry>();
+        for (PipelineManifest.Entry entry : manifest.getEntries()) {
+            if (new File(build.getArtifactsDir(), entry.getFileName()).exists()) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
     private String getPipelineName() {
         return pipelineFile.substring(0, pipelineFile.lastIndexOf(".json"));
     }
 
     private void activateNewPipeline(String pipelineId, DataPipelineClient client) throws DeploymentException {
-        AWSProxy proxy = new AWSProxy(client);
+        AWSProxy proxy = getProxy(client);
         proxy.activatePipeline(pipelineId);
         clientMessages.add("[INFO] Pipeline has been activated!");
         clientMessages.add("[INFO] New pipeline ID: " + pipelineId);
@@ -302,7 +754,7 @@ public class DeploymentAction implements Action {
     }
 
     private void uploadNewPipeline(String pipelineId, DataPipelineClient client) throws DeploymentException {
-        AWSProxy proxy = new AWSProxy(client);
+        AWSProxy proxy = getProxy(client);
         boolean success = proxy.putPipeline(pipelineId, pipelineObject);
         if (!success) {
             clientMessages.add("[ERROR] Unable to upload new pipeline definition.");
@@ -313,7 +765,7 @@ public class DeploymentAction implements Action {
     }
 
     private void validateNewPipeline(String pipelineId, DataPipelineClient client) throws DeploymentException {
-        AWSProxy proxy = new AWSProxy(client);
+        AWSProxy proxy = getProxy(client);
         ValidatePipelineDefinitionResult validation = proxy.validatePipeline(pipelineId, pipelineObject);
 
         List<ValidationError> errors = validation.getValidationErrors();
@@ -340,13 +792,13 @@ public class DeploymentAction implements Action {
     }
 
     private String createNewPipeline(DataPipelineClient client) throws DeploymentException {
-        AWSProxy proxy = new AWSProxy(client);
+        AWSProxy proxy = getProxy(client);
         return proxy.createPipeline(getPipelineName());
     }
 
     private void removeOldPipeline(DataPipelineClient client) throws DeploymentException {
         if (pipelineToRemoveId == null || !pipelineToRemoveId.isEmpty()) {
-            AWSProxy proxy = new AWSProxy(client);
+            AWSProxy proxy = getProxy(client);
             boolean result = proxy.removePipeline(pipelineToRemoveId);
 
             if (result) {
@@ -359,44 +811,100 @@ public class DeploymentAction implements Action {
         }
     }
 
+    /**
+     * @return shared clients for the credentials of this build, or null when Jenkins is not running
+     */
+    private AWSClientRegistry.Clients getClients() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+
+        PipelineBuilder.DescriptorImpl descriptor = jenkins.getDescriptorByType(PipelineBuilder.DescriptorImpl.class);
+        return descriptor.getClientRegistry().get(credentials, descriptor.getRegion());
+    }
+
+    /**
+     * @return clients which stay open until released, or null when Jenkins is not running
+     */
+    private AWSClientRegistry.Clients acquireClients() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+
+        PipelineBuilder.DescriptorImpl descriptor = jenkins.getDescriptorByType(PipelineBuilder.DescriptorImpl.class);
+        return descriptor.getClientRegistry().acquire(credentials, descriptor.getRegion());
+    }
+
+    private void releaseClients(AWSClientRegistry.Clients clients) {
+        if (clients != null) {
+            clients.release();
+        }
+    }
+
+    /**
+     * @return executor for background deployments, or null when Jenkins is not running
+     */
+    private static ExecutorService getDeploymentExecutor() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+
+        return jenkins.getDescriptorByType(PipelineBuilder.DescriptorImpl.class).getDeploymentExecutor();
+    }
+
+    private DataPipelineClient getDataPipelineClient(AWSClientRegistry.Clients clients) {
+        return clients != null ? clients.getDataPipeline() : new DataPipelineClient(credentials);
+    }
+
+    private AWSProxy getProxy(DataPipelineClient client) {
+        AWSClientRegistry.Clients clients = getClients();
+        return clients != null
+                ? new AWSProxy(client, clients.getCatalog(), clients.getPager())
+                : new AWSProxy(client);
+    }
+
     private String getPipelineId(String pipelineName, DataPipelineClient client) throws DeploymentException {
         String pipelineRegex = pipelineName.substring(0, pipelineName.lastIndexOf("-")) + "-\\d+";
-        AWSProxy proxy = new AWSProxy(client);
+        AWSProxy proxy = getProxy(client);
         return proxy.getPipelineId(pipelineRegex);
     }
 
     private void writeReport(Date date, String pipelineId, boolean success) {
+        // Background deployments record the user who started them
         User currentUser = User.current();
         String username;
-        if (currentUser != null) {
+        if (deployingUser != null) {
+            username = deployingUser;
+        } else if (currentUser != null) {
             username = currentUser.getFullName();
         } else {
             username = "Anonymous";
         }
 
-        FilePath newPath = new FilePath(new FilePath(build.getArtifactsDir()), LOG_FILENAME);
+        File logFile = new File(build.getArtifactsDir(), LOG_FILENAME);
         try {
-            String logContent = "";
-            DeploymentLog dto;
-
-            try {
-                logContent = newPath.readToString();
-            } catch (FileNotFoundException e) {
-                // Ignore
-            }
-
-            if (logContent.isEmpty()) {
-                dto = new DeploymentLog();
-            } else {
-                dto = new DeploymentLog(logContent);
-            }
-            dto.add(username, success, pipelineId, date, clientMessages);
-
-            newPath.write(dto.toString(), StandardCharsets.UTF_8.name());
+            // Copied, as messages may still be added while the entry is written
+            Deployment deployment = new Deployment(username, success, pipelineFile, pipelineId, date,
+                    new ArrayList<String>(clientMessages));
+            DeploymentLog.append(logFile, deployment);
+            updateDeploymentIndex(deployment);
         } catch (IOException e) {
             clientMessages.add("[ERROR] Failed to write deployment report!");
-        } catch (InterruptedException e) {
-            clientMessages.add("[ERROR] Failed to write deployment report!");
+        }
+    }
+
+    /**
+     * Record the deployment in the index of the job. A missing index is rebuilt from the logs of all builds,
+     * which already include this deployment.
+     */
+    private void updateDeploymentIndex(Deployment deployment) {
+        try {
+            DeploymentIndex.forProject(project).record(build.getNumber(), deployment, project.getBuilds());
+        } catch (IOException e) {
+            clientMessages.add("[WARN] Failed to update deployment index of the job: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Deployments of all builds of a job, one compact line each, without messages.
+ * Kept next to the job configuration, so history can be searched without opening the log of every build.
+ * The logs of the builds remain the full record, and the index can be rebuilt from them.
+ */
+public class DeploymentIndex {
+    public static final String INDEX_FILENAME = "pipeline-deployments.log";
+    private static final String BUILD_LOG_FILENAME = "deployment.log";
+    private static final String PIPELINE_EXTENSION = ".json";
+    // Builds of a job deploy concurrently, and all of them write the same index
+    private static final Object FILE_LOCK = new Object();
+
+    private final File file;
+
+    public DeploymentIndex(File file) {
+        this.file = file;
+    }
+
+    public static DeploymentIndex forProject(AbstractProject project) {
+        return new DeploymentIndex(new File(project.getRootDir(), INDEX_FILENAME));
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @param buildNumber
+     * @param deployment
+     * @throws IOException
+     */
+    public void add(int buildNumber, Deployment deployment) throws IOException {
+        byte[] line = (new Entry(buildNumber, deployment).toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        synchronized (FILE_LOCK) {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(line);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Add a deployment already written to the log of its build.
+     * A missing index is rebuilt instead, from the logs of the passed in builds.
+     *
+     * @param buildNumber
+     * @param deployment
+     * @param builds all builds of the job
+     * @throws IOException
+     */
+    public void record(int buildNumber, Deployment deployment, Iterable<? extends AbstractBuild> builds)
+            throws IOException {
+        // Checked and written under one lock, so concurrent deployments neither rebuild twice nor get lost
+        synchronized (FILE_LOCK) {
+            if (file.exists()) {
+                add(buildNumber, deployment);
+            } else {
+                rebuild(builds);
+            }
+        }
+    }
+
+    /**
+     * Recreate the index from the deployment logs of the passed in builds.
+     * The new index is written next to the old one and renamed over it.
+     * Logs are read under the lock, so deployments added meanwhile are not lost.
+     *
+     * @param builds
+     * @throws IOException
+     */
+    public void rebuild(Iterable<? extends AbstractBuild> builds) throws IOException {
+        synchronized (FILE_LOCK) {
+            ArrayList<Entry> entries = new ArrayList<Entry>();
+            for (AbstractBuild build : builds) {
+                for (Deployment deployment : DeploymentLog.read(new File(build.getArtifactsDir(), BUILD_LOG_FILENAME))) {
+                    entries.add(new Entry(build.getNumber(), deployment));
+                }
+            }
+            Collections.sort(entries, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return a.date.compareTo(b.date);
+                }
+            });
+
+            File rebuilt = new File(file.getPath() + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(rebuilt), StandardCharsets.UTF_8);
+            try {
+                for (Entry entry : entries) {
+                    writer.write(entry.toJSONString());
+                    writer.write("\n");
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!rebuilt.renameTo(file) && !(file.delete() && rebuilt.renameTo(file))) {
+                throw new IOException("Failed to rebuild deployment index " + file);
+            }
+        }
+    }
+
+    /**
+     * Find deployments of a pipeline within a time range.
+     *
+     * @param pipeline pipeline file name of any build, or the pipeline name without build number and extension,
+     *                 or null or empty for all pipelines
+     * @param from     earliest deployment time, inclusive, or null for no lower bound
+     * @param to       latest deployment time, exclusive, or null for no upper bound
+     * @return matching deployments, oldest first
+     * @throws IOException
+     */
+    public List<Entry> query(String pipeline, Date from, Date to) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+
+        String pipelineName = pipeline == null || pipeline.isEmpty() ? null : getPipelineName(pipeline);
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            JSONParser parser = new JSONParser();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.parse(parser, line);
+                if (entry != null
+                        && (pipelineName == null || pipelineName.equals(getPipelineName(entry.pipelineFile)))
+                        && (from == null || !entry.date.before(from))
+                        && (to == null || entry.date.before(to))) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Generated pipeline files are named after the pipeline, followed by the build number and extension.
+     *
+     * @param pipeline pipeline file name, or a pipeline name, which is returned as is
+     * @return name of the pipeline shared by all builds
+     */
+    private static String getPipelineName(String pipeline) {
+        if (pipeline == null) {
+            return "";
+        } else if (!pipeline.endsWith(PIPELINE_EXTENSION)) {
+            return pipeline;
+        }
+        return pipeline.substring(0, pipeline.length() - PIPELINE_EXTENSION.length()).replaceFirst("-\\d+$", "");
+    }
+
+    public static class Entry {
+        private final int buildNumber;
+        private final String pipelineFile;
+        private final String pipelineId;
+        private final String username;
+        private final boolean status;
+        private final Date date;
+
+        public Entry(int buildNumber, String pipelineFile, String pipelineId, String username, boolean status, Date date) {
+            this.buildNumber = buildNumber;
+            this.pipelineFile = pipelineFile;
+            this.pipelineId = pipelineId;
+            this.username = username;
+            this.status = status;
+            this.date = date;
+        }
+
+        public Entry(int buildNumber, Deployment deployment) {
+            this(buildNumber, deployment.getPipelineFile(), deployment.getPipelineId(), deployment.getUsername(),
+                    deployment.getStatus(), deployment.getDate());
+        }
+
+        private static Entry parse(JSONParser parser, String line) {
+            if (line.trim().isEmpty()) {
+                return null;
+            }
+
+            try {
+                JSONObject obj = (JSONObject) parser.parse(line);
+                // Lines cut short by a crash are skipped
+                if (!(obj.get("build") instanceof Long) || !(obj.get("status") instanceof Boolean)
+                        || !(obj.get("date") instanceof Long)) {
+                    return null;
+                }
+
+                return new Entry(((Long) obj.get("build")).intValue(), (String) obj.get("pipelineFile"),
+                        (String) obj.get("pipelineId"), (String) obj.get("username"),
+                        (Boolean) obj.get("status"), new Date((Long) obj.get("date")));
+            } catch (ParseException e) {
+                return null;
+            } catch (ClassCastException e) {
+                return null;
+            }
+        }
+
+        private String toJSONString() {
+            LinkedHashMap<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("build", buildNumber);
+            entry.put("pipelineFile", pipelineFile);
+            entry.put("pipelineId", pipelineId);
+            entry.put("username", username);
+            entry.put("status", status);
+            entry.put("date", date.getTime());
+
+            return JSONValue.toJSONString(entry);
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        /**
+         * @return pipeline file name, or null for deployments recorded before files were logged
+         */
+        public String getPipelineFile() {
+            return pipelineFile;
+        }
+
+        public String getPipelineId() {
+            return pipelineId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public boolean getStatus() {
+            return status;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+    }
+}
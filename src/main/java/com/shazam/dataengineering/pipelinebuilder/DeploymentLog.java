@@ -17,21 +17,32 @@ package com.shazam.dataengineering.pipelinebuilder;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
- * DTO object for deployment log
+ * DTO object for deployment log.
+ * <p>
+ * The log file holds one deployment per line, so a deployment is recorded by appending a single line,
+ * and the latest deployments can be read from the end of the file.
+ * Logs written as a single document, with all deployments under one root, are still read as they are,
+ * and are converted to lines on the next append.
  */
 public class DeploymentLog {
     private JSONObject log;
     private ParseException parseException;
 
     private static final String ROOT = "deployments";
+    private static final int TAIL_BLOCK_SIZE = 8192;
+    // Appends and conversions of all logs, so lines of concurrent deployments are never interleaved
+    private static final Object FILE_LOCK = new Object();
+    private static final Set<String> SUMMARY_KEYS = new HashSet<String>(
+            Arrays.asList("username", "status", "pipelineId", "date"));
 
     public DeploymentLog(String json) {
         try {
@@ -67,8 +78,8 @@ public class DeploymentLog {
     }
 
     public Deployment get(int index) {
-        ArrayList<Deployment> all = (ArrayList<Deployment>) getAll();
-        return all.get(index);
+        JSONArray deployments = (JSONArray) log.get(ROOT);
+        return new Deployment((JSONObject) deployments.get(index));
     }
 
     @Override
@@ -88,4 +99,388 @@ public class DeploymentLog {
         return parseException;
     }
 
+    /**
+     * Record a deployment by appending it as a single line.
+     * A log in the single document format is converted to lines first.
+     *
+     * @param file
+     * @param deployment
+     * @throws IOException
+     */
+    public static void append(File file, Deployment deployment) throws IOException {
+        byte[] line = (deployment.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        synchronized (FILE_LOCK) {
+            convertLegacyLog(file);
+
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                // Written in one go, so a line is either recorded whole or not at all
+                out.write(line);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @return all deployments in the log, oldest first
+     * @throws IOException
+     */
+    public static List<Deployment> read(File file) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+
+        ArrayList<Deployment> deployments = new ArrayList<Deployment>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line, deployments);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return deployments;
+    }
+
+    /**
+     * Read the latest deployments from the end of the file.
+     *
+     * @param file
+     * @param count maximum number of deployments to return
+     * @return latest deployments in the log, oldest first
+     * @throws IOException
+     */
+    public static List<Deployment> readTail(File file, int count) throws IOException {
+        if (count <= 0 || !file.exists()) {
+            return Collections.emptyList();
+        }
+
+        ArrayList<Deployment> deployments = new ArrayList<Deployment>();
+        for (Line line : readLinesBackwards(file, count)) {
+            parseLine(line.text, deployments);
+        }
+
+        return deployments.size() > count
+                ? new ArrayList<Deployment>(deployments.subList(deployments.size() - count, deployments.size()))
+                : deployments;
+    }
+
+    /**
+     * Page through deployments, newest first, without reading the messages of each deployment.
+     * Deployments of a log in the single document format have no position, as they don't start a line.
+     *
+     * @param file
+     * @param offset number of newest deployments to skip
+     * @param limit maximum number of deployments to return
+     * @return summaries of deployments, with their position in the log
+     * @throws IOException
+     * @see #readAt(java.io.File, long)
+     */
+    public static List<Deployment> readHistory(File file, int offset, int limit) throws IOException {
+        if (limit <= 0 || !file.exists()) {
+            return Collections.emptyList();
+        }
+
+        List<Line> lines = readLinesBackwards(file, offset + limit);
+        ArrayList<Deployment> deployments = new ArrayList<Deployment>();
+        int skipped = 0;
+        for (int i = lines.size() - 1; i >= 0 && deployments.size() < limit; i--) {
+            List<Deployment> summaries = isLegacyLine(lines.get(i).text)
+                    ? parseLegacySummaries(lines.get(i).text)
+                    : Collections.singletonList(parseSummary(lines.get(i)));
+            for (int j = summaries.size() - 1; j >= 0 && deployments.size() < limit; j--) {
+                if (summaries.get(j) != null && skipped++ >= offset) {
+                    deployments.add(summaries.get(j));
+                }
+            }
+        }
+
+        return deployments;
+    }
+
+    /**
+     * @param file
+     * @param position position of the deployment in the log, as returned with its summary
+     * @return deployment with its messages, or null if there is no deployment at the position
+     * @throws IOException
+     */
+    public static Deployment readAt(File file, long position) throws IOException {
+        if (position < 0 || !file.exists() || position >= file.length()) {
+            return null;
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // Only the start of a line is a valid position
+            if (position > 0) {
+                randomAccessFile.seek(position - 1);
+                if (randomAccessFile.read() != '\n') {
+                    return null;
+                }
+            }
+
+            byte[] buffer = new byte[TAIL_BLOCK_SIZE];
+            int read;
+            boolean found = false;
+            while (!found && (read = randomAccessFile.read(buffer)) > 0) {
+                int length = 0;
+                while (length < read && buffer[length] != '\n') {
+                    length++;
+                }
+                line.write(buffer, 0, length);
+                found = length < read;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        ArrayList<Deployment> deployments = new ArrayList<Deployment>();
+        parseLine(new String(line.toByteArray(), StandardCharsets.UTF_8), deployments);
+        if (deployments.size() != 1) {
+            return null;
+        }
+
+        Deployment deployment = deployments.get(0);
+        deployment.setPosition(position);
+        return deployment;
+    }
+
+    /**
+     * Read lines backwards from the end of the file until enough complete lines have been found.
+     *
+     * @return at least count lines with their position, or all lines, oldest first
+     */
+    private static List<Line> readLinesBackwards(File file, int count) throws IOException {
+        byte[] tail = new byte[0];
+        long position;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            position = randomAccessFile.length();
+            // The last line ends with a newline as well, so one more is needed to be sure of having enough lines
+            int newlines = 0;
+            while (position > 0 && newlines <= count) {
+                int size = (int) Math.min(TAIL_BLOCK_SIZE, position);
+                position -= size;
+
+                byte[] block = new byte[size + tail.length];
+                randomAccessFile.seek(position);
+                randomAccessFile.readFully(block, 0, size);
+                System.arraycopy(tail, 0, block, size, tail.length);
+                for (int i = 0; i < size; i++) {
+                    if (block[i] == '\n') {
+                        newlines++;
+                    }
+                }
+                tail = block;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        ArrayList<Line> lines = new ArrayList<Line>();
+        int start = 0;
+        // Unless the start of the file was reached, the first line is incomplete
+        if (position > 0) {
+            while (start < tail.length && tail[start] != '\n') {
+                start++;
+            }
+            start++;
+        }
+        for (int i = start; i <= tail.length; i++) {
+            if (i == tail.length || tail[i] == '\n') {
+                if (i > start) {
+                    lines.add(new Line(position + start, new String(tail, start, i - start, StandardCharsets.UTF_8)));
+                }
+                start = i + 1;
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Lines hold a single deployment, or in logs of the old format, a document with all of them.
+     * Lines which fail to parse, such as one cut short by a crash, are skipped.
+     */
+    private static void parseLine(String line, List<Deployment> deployments) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+
+        try {
+            JSONObject object = (JSONObject) new JSONParser().parse(line);
+            if (object.containsKey(ROOT)) {
+                JSONArray all = (JSONArray) object.get(ROOT);
+                for (int i = 0; i < all.size(); i++) {
+                    deployments.add(new Deployment((JSONObject) all.get(i)));
+                }
+            } else {
+                deployments.add(new Deployment(object));
+            }
+        } catch (ParseException e) {
+            // Skip
+        } catch (ClassCastException e) {
+            // Skip
+        }
+    }
+
+    /**
+     * Read the fields of a deployment without keeping its messages.
+     * The whole line is parsed, so a line cut short is rejected, as it is when read in full.
+     *
+     * @return summary of the deployment, or null if the line is not a complete deployment
+     */
+    private static Deployment parseSummary(Line line) {
+        SummaryHandler handler = new SummaryHandler();
+        try {
+            new JSONParser().parse(line.text, handler);
+        } catch (ParseException e) {
+            return null;
+        }
+
+        Map<String, Object> values = handler.values;
+        if (values.size() < SUMMARY_KEYS.size()
+                || !(values.get("status") instanceof Boolean) || !(values.get("date") instanceof Long)) {
+            return null;
+        }
+
+        return new Deployment((String) values.get("username"), (Boolean) values.get("status"),
+                (String) values.get("pipelineId"), new Date((Long) values.get("date")), line.position);
+    }
+
+    /**
+     * @return summaries of all deployments in a document of the old format, oldest first
+     */
+    private static List<Deployment> parseLegacySummaries(String line) {
+        ArrayList<Deployment> deployments = new ArrayList<Deployment>();
+        parseLine(line, deployments);
+
+        ArrayList<Deployment> summaries = new ArrayList<Deployment>();
+        for (Deployment deployment : deployments) {
+            summaries.add(new Deployment(deployment.getUsername(), deployment.getStatus(),
+                    deployment.getPipelineId(), deployment.getDate(), -1));
+        }
+        return summaries;
+    }
+
+    // Deployments never start with the root of the old format, so most lines are told apart without parsing
+    private static boolean isLegacyLine(String line) {
+        return line.startsWith("{\"" + ROOT + "\"");
+    }
+
+    private static boolean isLegacyLog(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String firstLine = reader.readLine();
+            if (firstLine == null || !isLegacyLine(firstLine)) {
+                return false;
+            }
+
+            DeploymentLog log = new DeploymentLog(firstLine);
+            return log.isParsed() && log.log != null && log.log.containsKey(ROOT);
+        } catch (ClassCastException e) {
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrite a log in the single document format as one line per deployment.
+     * The new log is written next to the old one and renamed over it.
+     */
+    private static void convertLegacyLog(File file) throws IOException {
+        if (!isLegacyLog(file)) {
+            return;
+        }
+
+        List<Deployment> deployments = read(file);
+        File converted = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(converted), StandardCharsets.UTF_8);
+        try {
+            for (Deployment deployment : deployments) {
+                writer.write(deployment.toJSONString());
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!converted.renameTo(file) && !(file.delete() && converted.renameTo(file))) {
+            throw new IOException("Failed to convert deployment log " + file);
+        }
+    }
+
+    private static class Line {
+        private final long position;
+        private final String text;
+
+        private Line(long position, String text) {
+            this.position = position;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Collects the top level summary fields of a deployment, and stops parsing once it has them all.
+     */
+    private static class SummaryHandler implements ContentHandler {
+        private final HashMap<String, Object> values = new HashMap<String, Object>();
+        private int depth = 0;
+        private String key;
+
+        public void startJSON() {
+        }
+
+        public void endJSON() {
+        }
+
+        public boolean startObject() {
+            depth++;
+            return true;
+        }
+
+        public boolean endObject() {
+            depth--;
+            return true;
+        }
+
+        public boolean startObjectEntry(String key) {
+            if (depth == 1) {
+                this.key = key;
+            }
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        public boolean startArray() {
+            depth++;
+            return true;
+        }
+
+        public boolean endArray() {
+            depth--;
+            return true;
+        }
+
+        public boolean primitive(Object value) {
+            if (depth == 1 && SUMMARY_KEYS.contains(key)) {
+                values.put(key, value);
+            }
+            return true;
+        }
+    }
 }
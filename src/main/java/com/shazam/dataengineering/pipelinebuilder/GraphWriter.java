@@ -25,9 +25,7 @@ import org.jgrapht.graph.DefaultEdge;
 import org.jgrapht.graph.DirectedMultigraph;
 
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Class responsible for writing out DOT representation of the pipeline.
@@ -47,6 +45,36 @@ public class GraphWriter {
         dot.export(writer, graph);
     }
 
+    /**
+     * Describe the graph written for the pipeline, independent of object order.
+     * Pipelines with equal signatures produce identical DOT files.
+     *
+     * @return signature of activities and their relationships
+     */
+    @SuppressWarnings("unchecked")
+    public String getSignature(PipelineObject pipeline) {
+        DirectedMultigraph graph = getGraph(pipeline);
+        PipelineVertexNameProvider names = new PipelineVertexNameProvider();
+
+        ArrayList<String> lines = new ArrayList<String>();
+        for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject :
+                (Set<com.amazonaws.services.datapipeline.model.PipelineObject>) graph.vertexSet()) {
+            lines.add("V " + names.getVertexName(awsObject));
+        }
+        for (RelationshipEdge<com.amazonaws.services.datapipeline.model.PipelineObject> edge :
+                (Set<RelationshipEdge<com.amazonaws.services.datapipeline.model.PipelineObject>>) graph.edgeSet()) {
+            lines.add("E " + edge.getV1().getId() + " " + edge.toString() + " " + edge.getV2().getId());
+        }
+        Collections.sort(lines);
+
+        StringBuilder signature = new StringBuilder();
+        for (String line : lines) {
+            signature.append(line).append('\n');
+        }
+
+        return signature.toString();
+    }
+
     /**
      * Build DAG of the pipeline for writing to DOT
      * Only generates activity information. Full graphs tend to be very noisy.
@@ -59,16 +87,15 @@ public class GraphWriter {
                 new ClassBasedEdgeFactory<com.amazonaws.services.datapipeline.model.PipelineObject, RelationshipEdge>(RelationshipEdge.class));
 
         // Maintain map for easier edge creation
-        HashMap<String, com.amazonaws.services.datapipeline.model.PipelineObject> idToPipeline =
-                new HashMap<String, com.amazonaws.services.datapipeline.model.PipelineObject>();
-
-        List<com.amazonaws.services.datapipeline.model.PipelineObject> awsObjects = pipeline.getAWSObjects();
-        for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject : awsObjects) {
-            // Ignore everything except activities
-            if (!awsObject.getId().equals("Default")) {
-                for (Field field : awsObject.getFields()) {
-                    // Only add activities to the DOT
-                    if (field.getKey().equals("type") && field.getStringValue().contains("Activity")) {
+        LinkedHashMap<String, com.amazonaws.services.datapipeline.model.PipelineObject> idToPipeline =
+                new LinkedHashMap<String, com.amazonaws.services.datapipeline.model.PipelineObject>();
+
+        // Only add activities to the DOT
+        for (String type : pipeline.getTypes()) {
+            if (type.contains("Activity")) {
+                for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject :
+                        pipeline.getObjectsByType(type)) {
+                    if (!"Default".equals(awsObject.getId())) {
                         idToPipeline.put(awsObject.getId(), awsObject);
                         graph.addVertex(awsObject);
                     }
@@ -76,16 +103,15 @@ public class GraphWriter {
             }
         }
 
-        for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject :
-                (Set<com.amazonaws.services.datapipeline.model.PipelineObject>) graph.vertexSet()) {
-            List<Field> fields = awsObject.getFields();
-            for (Field field : fields) {
-                if (field.getRefValue() != null && idToPipeline.containsKey(field.getRefValue())) {
-                    graph.addEdge(awsObject, idToPipeline.get(field.getRefValue()),
+        for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject : idToPipeline.values()) {
+            for (PipelineObject.Reference reference : pipeline.getReferencesFrom(awsObject.getId())) {
+                com.amazonaws.services.datapipeline.model.PipelineObject target = idToPipeline.get(reference.getTo());
+                if (target != null) {
+                    graph.addEdge(awsObject, target,
                             new RelationshipEdge<com.amazonaws.services.datapipeline.model.PipelineObject>(
                                     awsObject,
-                                    idToPipeline.get(field.getRefValue()),
-                                    field.getKey()
+                                    target,
+                                    reference.getKey()
                             ));
                 }
             }
@@ -16,6 +16,7 @@
 package com.shazam.dataengineering.pipelinebuilder;
 
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -28,6 +29,7 @@ import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -37,6 +39,10 @@ import org.kohsuke.stapler.StaplerRequest;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class PipelineBuilder extends Builder {
     public static final PermissionGroup PERMISSIONS = new PermissionGroup(
@@ -55,12 +61,26 @@ public class PipelineBuilder extends Builder {
     private Environment[] configParams;
     private String file;
     private String s3Prefix;
+    private boolean parallelEnvironments;
+    private String scriptIncludes;
+    private String scriptExcludes;
+    private boolean distinctGraphsOnly;
+
+    public PipelineBuilder(String filePath, String s3Prefix, Environment[] environment) {
+        this(filePath, s3Prefix, environment, false,
+                WorkspaceIndex.DEFAULT_INCLUDES, WorkspaceIndex.DEFAULT_EXCLUDES, false);
+    }
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
-    public PipelineBuilder(String filePath, String s3Prefix, Environment[] environment) {
+    public PipelineBuilder(String filePath, String s3Prefix, Environment[] environment, boolean parallelEnvironments,
+                           String scriptIncludes, String scriptExcludes, boolean distinctGraphsOnly) {
         this.configParams = environment;
         this.file = filePath;
+        this.parallelEnvironments = parallelEnvironments;
+        this.scriptIncludes = scriptIncludes;
+        this.scriptExcludes = scriptExcludes;
+        this.distinctGraphsOnly = distinctGraphsOnly;
         setS3Prefix(s3Prefix);
     }
 
@@ -78,12 +98,16 @@ public class PipelineBuilder extends Builder {
             return true;
         }
         processor.setS3Prefix(s3Prefix);
+        processor.setParallel(parallelEnvironments);
+        processor.setScriptFilter(getScriptIncludes(), getScriptExcludes());
+        processor.setDistinctGraphsOnly(distinctGraphsOnly);
 
         boolean result = processor.process(input);
         if (result) {
             build.addAction(new DeploymentAction(
                     build,
                     processor.getS3Urls(),
+                    processor.getScriptDigests(),
                     new BasicAWSCredentials(
                             getDescriptor().getAccessId(),
                             getDescriptor().getSecretKey())));
@@ -117,6 +141,34 @@ public class PipelineBuilder extends Builder {
         return env;
     }
 
+    public boolean isParallelEnvironments() {
+        return parallelEnvironments;
+    }
+
+    public boolean isDistinctGraphsOnly() {
+        return distinctGraphsOnly;
+    }
+
+    /**
+     * @return Ant style glob of workspace files searched for scripts
+     */
+    public String getScriptIncludes() {
+        if (scriptIncludes == null || scriptIncludes.trim().isEmpty()) {
+            return WorkspaceIndex.DEFAULT_INCLUDES;
+        }
+        return scriptIncludes;
+    }
+
+    /**
+     * @return Ant style glob of workspace files and directories never searched for scripts
+     */
+    public String getScriptExcludes() {
+        if (scriptExcludes == null) {
+            return WorkspaceIndex.DEFAULT_EXCLUDES;
+        }
+        return scriptExcludes;
+    }
+
     public String getS3Prefix() {
         return s3Prefix;
     }
@@ -150,6 +202,19 @@ public class PipelineBuilder extends Builder {
          */
         public String accessId;
         public String secretKey;
+        public String region;
+        public int maxConnections;
+        public int connectionTimeout;
+        public int socketTimeout;
+        public int connectionTTL;
+        public boolean collectUploadFailures;
+        public int deploymentThreads;
+
+        private transient AWSClientRegistry clientRegistry = new AWSClientRegistry();
+        // Deployments queue up once all threads are busy
+        private transient ThreadPoolExecutor deploymentExecutor = new ThreadPoolExecutor(
+                DeploymentAction.DEFAULT_DEPLOYMENT_THREADS, DeploymentAction.DEFAULT_DEPLOYMENT_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
 
         /**
          * In order to load the persisted global configuration, you have to
@@ -157,6 +222,8 @@ public class PipelineBuilder extends Builder {
          */
         public DescriptorImpl() {
             load();
+            configureClients();
+            configureDeployments();
         }
 
         /**
@@ -185,6 +252,30 @@ public class PipelineBuilder extends Builder {
             }
         }
 
+        public FormValidation doCheckRegion(@QueryParameter String value) {
+            if (!isKnownRegion(value.trim())) {
+                return FormValidation.error("Unknown AWS region \"" + value.trim() + "\"");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        /**
+         * @param region AWS region name, or empty for the SDK default
+         * @return whether clients can be created for the region
+         */
+        private static boolean isKnownRegion(String region) {
+            if (region.isEmpty()) {
+                return true;
+            }
+            try {
+                Regions.fromName(region);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
         /**
          * This human readable name is used in the configuration screen.
          */
@@ -194,13 +285,36 @@ public class PipelineBuilder extends Builder {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            // Checked before anything is stored, so a typo keeps the clients of the previous region
+            String newRegion = formData.optString("region").trim();
+            if (!isKnownRegion(newRegion)) {
+                throw new FormException("Unknown AWS region \"" + newRegion + "\"", "region");
+            }
+
             accessId = formData.getString("accessId");
             secretKey = formData.getString("secretKey");
+            region = newRegion;
+            maxConnections = formData.optInt("maxConnections");
+            connectionTimeout = formData.optInt("connectionTimeout");
+            socketTimeout = formData.optInt("socketTimeout");
+            connectionTTL = formData.optInt("connectionTTL");
+            collectUploadFailures = formData.optBoolean("collectUploadFailures");
+            deploymentThreads = formData.optInt("deploymentThreads");
+            configureClients();
+            configureDeployments();
 
             save();
             return super.configure(req, formData);
         }
 
+        public String getDefaultScriptIncludes() {
+            return WorkspaceIndex.DEFAULT_INCLUDES;
+        }
+
+        public String getDefaultScriptExcludes() {
+            return WorkspaceIndex.DEFAULT_EXCLUDES;
+        }
+
         public String getAccessId() {
             return accessId;
         }
@@ -208,5 +322,82 @@ public class PipelineBuilder extends Builder {
         public String getSecretKey() {
             return secretKey;
         }
+
+        /**
+         * @return AWS region name, or empty for the SDK default
+         */
+        public String getRegion() {
+            return region == null ? "" : region;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections > 0 ? maxConnections : AWSClientRegistry.DEFAULT_MAX_CONNECTIONS;
+        }
+
+        public int getConnectionTimeout() {
+            return connectionTimeout > 0 ? connectionTimeout : AWSClientRegistry.DEFAULT_CONNECTION_TIMEOUT;
+        }
+
+        public int getSocketTimeout() {
+            return socketTimeout > 0 ? socketTimeout : AWSClientRegistry.DEFAULT_SOCKET_TIMEOUT;
+        }
+
+        public long getConnectionTTL() {
+            return connectionTTL > 0 ? connectionTTL : AWSClientRegistry.DEFAULT_CONNECTION_TTL;
+        }
+
+        /**
+         * @return true to upload all scripts and report every failure, false to stop at the first failure
+         */
+        public boolean isCollectUploadFailures() {
+            return collectUploadFailures;
+        }
+
+        /**
+         * @return number of deployments run at the same time
+         */
+        public int getDeploymentThreads() {
+            return deploymentThreads > 0 ? deploymentThreads : DeploymentAction.DEFAULT_DEPLOYMENT_THREADS;
+        }
+
+        /**
+         * @return AWS clients shared by all deployments
+         */
+        public AWSClientRegistry getClientRegistry() {
+            return clientRegistry;
+        }
+
+        /**
+         * @return executor running deployments in the background
+         */
+        public ExecutorService getDeploymentExecutor() {
+            return deploymentExecutor;
+        }
+
+        /**
+         * Stop accepting deployments and release AWS clients once running deployments finish.
+         */
+        public void shutdown() {
+            deploymentExecutor.shutdown();
+            clientRegistry.shutdown();
+        }
+
+        private void configureClients() {
+            clientRegistry.configure(getMaxConnections(), getConnectionTimeout(), getSocketTimeout(),
+                    getConnectionTTL());
+        }
+
+        private void configureDeployments() {
+            int threads = getDeploymentThreads();
+            // The core size can't exceed the maximum size
+            if (threads > deploymentExecutor.getMaximumPoolSize()) {
+                deploymentExecutor.setMaximumPoolSize(threads);
+                deploymentExecutor.setCorePoolSize(threads);
+            } else {
+                deploymentExecutor.setCorePoolSize(threads);
+                deploymentExecutor.setMaximumPoolSize(threads);
+            }
+            deploymentExecutor.allowCoreThreadTimeOut(true);
+        }
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import hudson.Plugin;
+import jenkins.model.Jenkins;
+
+/**
+ * Releases the deployment threads and AWS clients when Jenkins stops.
+ */
+public class PipelineBuilderPlugin extends Plugin {
+    @Override
+    public void stop() throws Exception {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+
+        PipelineBuilder.DescriptorImpl descriptor = jenkins.getDescriptorByType(PipelineBuilder.DescriptorImpl.class);
+        if (descriptor != null) {
+            descriptor.shutdown();
+        }
+    }
+}
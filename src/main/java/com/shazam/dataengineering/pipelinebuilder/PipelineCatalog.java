@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import com.amazonaws.services.datapipeline.DataPipelineClient;
+import com.amazonaws.services.datapipeline.model.ListPipelinesRequest;
+import com.amazonaws.services.datapipeline.model.ListPipelinesResult;
+import com.amazonaws.services.datapipeline.model.PipelineIdName;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cached list of the pipelines in an account.
+ * Listing all pipelines takes one request per page, which adds up to seconds in large accounts,
+ * so the list is kept for a while and updated as pipelines are created and deleted.
+ */
+public class PipelineCatalog {
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private final long ttl;
+    private List<PipelineIdName> pipelines;
+    private long loadedAt;
+
+    public PipelineCatalog(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Find the first pipeline, in listing order, whose whole name matches the pattern.
+     * The list is fetched again once it is older than the time to live.
+     *
+     * @param client
+     * @param pattern
+     * @return pipeline id, or empty string if no pipeline matches
+     */
+    public synchronized String getPipelineId(DataPipelineClient client, Pattern pattern) {
+        if (pipelines == null || System.currentTimeMillis() - loadedAt > ttl) {
+            pipelines = listPipelines(client, null);
+            loadedAt = System.currentTimeMillis();
+        }
+
+        return findPipelineId(pipelines, pattern);
+    }
+
+    public synchronized void add(String name, String pipelineId) {
+        if (pipelines != null) {
+            pipelines.add(new PipelineIdName().withName(name).withId(pipelineId));
+        }
+    }
+
+    public synchronized void remove(String pipelineId) {
+        if (pipelines != null) {
+            Iterator<PipelineIdName> iterator = pipelines.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getId().equals(pipelineId)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidate() {
+        pipelines = null;
+    }
+
+    /**
+     * Page through all pipelines. Pages are chained by marker, so they are fetched one after another.
+     *
+     * @param client
+     * @param marker page to start from, or null for the first page
+     * @return
+     */
+    public static List<PipelineIdName> listPipelines(DataPipelineClient client, String marker) {
+        ArrayList<PipelineIdName> pipelines = new ArrayList<PipelineIdName>();
+        do {
+            ListPipelinesRequest request = new ListPipelinesRequest();
+            if (marker != null) {
+                request.setMarker(marker);
+            }
+
+            ListPipelinesResult result = client.listPipelines(request);
+            pipelines.addAll(result.getPipelineIdList());
+            marker = Boolean.TRUE.equals(result.getHasMoreResults()) ? result.getMarker() : null;
+        } while (marker != null);
+
+        return pipelines;
+    }
+
+    public static String findPipelineId(List<PipelineIdName> pipelines, Pattern pattern) {
+        for (PipelineIdName pipeline : pipelines) {
+            if (pattern.matcher(pipeline.getName()).matches()) {
+                return pipeline.getId();
+            }
+        }
+
+        return "";
+    }
+}
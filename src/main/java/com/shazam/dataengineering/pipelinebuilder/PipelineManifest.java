@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pipelines generated by a build, with what the deploy page shows about them.
+ * Written once the pipelines are processed, so the deploy page does not have to
+ * read and parse every artifact of the build to find them.
+ */
+public class PipelineManifest {
+    public static final String FILENAME = "pipeline-manifest.json";
+    private static final String ROOT = "pipelines";
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    public void add(Entry entry) {
+        entries.put(entry.getFileName(), entry);
+    }
+
+    /**
+     * @return entries in the order pipelines were generated
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    /**
+     * @param fileName
+     * @return entry of the pipeline file, or null if the build did not generate it
+     */
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    public void write(File file) throws IOException {
+        JSONArray pipelines = new JSONArray();
+        for (Entry entry : entries.values()) {
+            pipelines.add(entry.toJSON());
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put(ROOT, pipelines);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            JSONValue.writeJSONString(manifest, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param file
+     * @return manifest, or null if there is none, as for builds made before manifests were written
+     * @throws IOException
+     */
+    public static PipelineManifest read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        try {
+            JSONObject manifest = (JSONObject) new JSONParser().parse(reader);
+            JSONArray pipelines = (JSONArray) manifest.get(ROOT);
+            PipelineManifest result = new PipelineManifest();
+            for (int i = 0; i < pipelines.size(); i++) {
+                result.add(new Entry((JSONObject) pipelines.get(i)));
+            }
+            return result;
+        } catch (ParseException e) {
+            throw new IOException("Failed to read pipeline manifest " + file, e);
+        } catch (ClassCastException e) {
+            throw new IOException("Failed to read pipeline manifest " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static class Entry {
+        private final String fileName;
+        private final String environment;
+        private final String scheduleDate;
+        private final int objectCount;
+
+        public Entry(String fileName, String environment, String scheduleDate, int objectCount) {
+            this.fileName = fileName;
+            this.environment = environment;
+            this.scheduleDate = scheduleDate;
+            this.objectCount = objectCount;
+        }
+
+        private Entry(JSONObject obj) {
+            this((String) obj.get("fileName"), (String) obj.get("environment"), (String) obj.get("scheduleDate"),
+                    ((Long) obj.get("objectCount")).intValue());
+        }
+
+        private JSONObject toJSON() {
+            JSONObject entry = new JSONObject();
+            entry.put("fileName", fileName);
+            entry.put("environment", environment);
+            entry.put("scheduleDate", scheduleDate);
+            entry.put("objectCount", objectCount);
+
+            return entry;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getEnvironment() {
+            return environment;
+        }
+
+        /**
+         * @return earliest schedule of the pipeline, or empty string if it has none
+         */
+        public String getScheduleDate() {
+            return scheduleDate;
+        }
+
+        public int getObjectCount() {
+            return objectCount;
+        }
+    }
+}
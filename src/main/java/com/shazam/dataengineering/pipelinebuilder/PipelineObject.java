@@ -16,30 +16,111 @@
 package com.shazam.dataengineering.pipelinebuilder;
 
 import com.amazonaws.services.datapipeline.model.Field;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class PipelineObject {
     public static final String PIPELINE_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    public static final String SCHEDULE_TYPE = "Schedule";
+    public static final String ON_DEMAND_SCHEDULE_TYPE = "ondemand";
 
-    private JSONObject pipeline;
-    private ParseException parseException;
+    private static final String DEFAULT_ID = "Default";
+    private static final String START_DATE_TIME = "startDateTime";
+
+    // Thread safe once configured, so shared between all pipelines
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int[] DAYS_BEFORE_MONTH = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334};
+    // SimpleDateFormat is not thread safe, so each thread gets its own
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(PIPELINE_DATE_FORMAT);
+            dateFormat.setTimeZone(UTC);
+            return dateFormat;
+        }
+    };
+
+    private ObjectNode pipeline;
+    private Exception parseException;
+
+    // Index of the objects array, built once when parsed.
+    // Only schedule dates are modified afterwards, which leaves ids, types and references intact.
+    private final Map<String, ObjectNode> objectsById = new HashMap<String, ObjectNode>();
+    private final Map<String, List<ObjectNode>> objectsByType = new LinkedHashMap<String, List<ObjectNode>>();
+    private final Map<String, List<Reference>> referencesFrom = new HashMap<String, List<Reference>>();
+    private final Map<String, List<Reference>> referencesTo = new HashMap<String, List<Reference>>();
+
+    // AWS model of the objects, converted on first use and dropped whenever the definition changes
+    private List<com.amazonaws.services.datapipeline.model.PipelineObject> awsObjects;
+    private IdentityHashMap<JsonNode, com.amazonaws.services.datapipeline.model.PipelineObject> awsObjectsByNode;
 
     public PipelineObject(String json) {
         try {
-            JSONParser jsonParser = new JSONParser();
-            pipeline = (JSONObject) jsonParser.parse(json);
-        } catch (ParseException e) {
+            pipeline = readPipeline(MAPPER.getFactory().createParser(json));
+            index();
+        } catch (IOException e) {
+            parseException = e;
+        }
+    }
+
+    public PipelineObject(Reader json) {
+        try {
+            pipeline = readPipeline(MAPPER.getFactory().createParser(json));
+            index();
+        } catch (IOException e) {
             parseException = e;
         }
     }
 
+    /**
+     * Independent copy of another pipeline, made without serialising and parsing it again.
+     *
+     * @param other
+     */
+    public PipelineObject(PipelineObject other) {
+        parseException = other.parseException;
+        if (other.pipeline != null) {
+            pipeline = other.pipeline.deepCopy();
+            index();
+        }
+    }
+
+    /**
+     * Read a single JSON object. Anything after it makes the definition invalid.
+     */
+    private static ObjectNode readPipeline(JsonParser parser) throws IOException {
+        try {
+            JsonNode node = MAPPER.readTree(parser);
+            if (parser.nextToken() != null) {
+                throw new IOException("Unexpected content after the pipeline definition");
+            }
+            return asPipeline(node);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static ObjectNode asPipeline(JsonNode node) throws IOException {
+        if (node == null || !node.isObject()) {
+            throw new IOException("Pipeline definition must be a JSON object");
+        }
+
+        return (ObjectNode) node;
+    }
+
     public boolean isValid() {
         return pipeline != null;
     }
@@ -48,43 +129,260 @@ public class PipelineObject {
         return parseException;
     }
 
+    /**
+     * Move the earliest schedule to the passed in date.
+     * Other schedules are shifted by the same amount, keeping their offset from the earliest one.
+     * Schedules starting at activation and on demand pipelines are left as they are.
+     *
+     * @param date
+     */
     public void setScheduleDate(String date) {
-        if (isValid() && validateDate(date)) {
-            JSONArray objectArray = (JSONArray) pipeline.get("objects");
-            for (Object object : objectArray) {
-                Object type = ((JSONObject) object).get("type");
-                // TODO: Handle multiple Schedule objects
-                // TODO: Handle runOnce objects
-                if (type != null && type.toString().equals("Schedule")) {
-                    ((JSONObject) object).put("startDateTime", date);
+        if (!validateDate(date)) {
+            return;
+        }
+
+        Map<String, String> scheduleDates = getScheduleDates();
+        String earliest = getEarliest(scheduleDates.values());
+        if (earliest == null) {
+            return;
+        }
+
+        try {
+            long shift = getTime(date) - getTime(earliest);
+            LinkedHashMap<String, String> shifted = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> entry : scheduleDates.entrySet()) {
+                try {
+                    shifted.put(entry.getKey(), formatDate(new Date(getTime(entry.getValue()) + shift)));
+                } catch (java.text.ParseException e) {
+                    // Not a date we can shift, so start it with the others
+                    shifted.put(entry.getKey(), date);
                 }
             }
+            setScheduleDates(shifted);
+        } catch (java.text.ParseException e) {
+            // Earliest date was checked by getEarliest
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Set start dates of individual schedules.
+     * Ids that are not schedules with a start date, and invalid dates, are ignored.
+     *
+     * @param dates Map of schedule id to its new start date
+     */
+    public void setScheduleDates(Map<String, String> dates) {
+        if (!isValid() || isOnDemand()) {
+            return;
+        }
+
+        for (Map.Entry<String, String> entry : dates.entrySet()) {
+            ObjectNode schedule = objectsById.get(entry.getKey());
+            if (schedule != null && isDatedSchedule(schedule) && validateDate(entry.getValue())) {
+                schedule.put(START_DATE_TIME, entry.getValue());
+            }
         }
+        invalidateAWSObjects();
     }
 
+    /**
+     * @return start date of the earliest schedule, or empty string if no schedule has a start date
+     */
     public String getScheduleDate() {
-        if (isValid()) {
-            JSONArray objectArray = (JSONArray) pipeline.get("objects");
-            for (Object object : objectArray) {
-                Object type = ((JSONObject) object).get("type");
-                if (type != null && type.toString().equals("Schedule")) {
-                    return (String) ((JSONObject) object).get("startDateTime");
+        String earliest = getEarliest(getScheduleDates().values());
+        return earliest == null ? "" : earliest;
+    }
+
+    /**
+     * Schedules which start at activation (startAt) have no start date, and are not included.
+     *
+     * @return Map of schedule id to its start date, in definition order
+     */
+    public Map<String, String> getScheduleDates() {
+        LinkedHashMap<String, String> dates = new LinkedHashMap<String, String>();
+        if (isValid() && !isOnDemand()) {
+            for (ObjectNode schedule : getNodesByType(SCHEDULE_TYPE)) {
+                String id = schedule.path("id").textValue();
+                if (id != null && isDatedSchedule(schedule)) {
+                    dates.put(id, schedule.get(START_DATE_TIME).textValue());
                 }
             }
         }
 
-        return "";
+        return dates;
+    }
+
+    /**
+     * @return true if the pipeline is only run when activated, and has no schedule to set
+     */
+    public boolean isOnDemand() {
+        ObjectNode defaults = objectsById.get(DEFAULT_ID);
+        return defaults != null
+                && ON_DEMAND_SCHEDULE_TYPE.equalsIgnoreCase(defaults.path("scheduleType").textValue());
+    }
+
+    /**
+     * @param id
+     * @return AWS model of the object with this id, or null if there is none
+     */
+    public com.amazonaws.services.datapipeline.model.PipelineObject getById(String id) {
+        ObjectNode object = objectsById.get(id);
+        return object == null ? null : getAWSObject(object);
+    }
+
+    /**
+     * @param type
+     * @return AWS model of every object of this type, in definition order
+     */
+    public List<com.amazonaws.services.datapipeline.model.PipelineObject> getObjectsByType(String type) {
+        ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject> list =
+                new ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject>();
+        for (ObjectNode object : getNodesByType(type)) {
+            list.add(getAWSObject(object));
+        }
+
+        return list;
+    }
+
+    /**
+     * @return types of all objects, in order of first appearance
+     */
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(objectsByType.keySet());
+    }
+
+    /**
+     * @return number of objects in the definition, counted by id
+     */
+    public int getObjectCount() {
+        return objectsById.size();
+    }
+
+    /**
+     * @param id
+     * @return references held by the object with this id
+     */
+    public List<Reference> getReferencesFrom(String id) {
+        List<Reference> references = referencesFrom.get(id);
+        return references == null ? Collections.<Reference>emptyList() : Collections.unmodifiableList(references);
+    }
+
+    /**
+     * @param id
+     * @return references pointing at the object with this id
+     */
+    public List<Reference> getReferencesTo(String id) {
+        List<Reference> references = referencesTo.get(id);
+        return references == null ? Collections.<Reference>emptyList() : Collections.unmodifiableList(references);
     }
 
     public static Date getDate(String date) throws java.text.ParseException {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(PIPELINE_DATE_FORMAT);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return dateFormat.parse(date);
+        return new Date(getTime(date));
+    }
+
+    /**
+     * Parse a date in pipeline format into milliseconds since epoch.
+     * Well formed dates are parsed by hand. Anything else goes through the lenient
+     * SimpleDateFormat, so the accepted input is unchanged.
+     *
+     * @param date
+     * @return
+     * @throws java.text.ParseException
+     */
+    private static long getTime(String date) throws java.text.ParseException {
+        if (date != null && date.length() == 19
+                && date.charAt(4) == '-' && date.charAt(7) == '-' && date.charAt(10) == 'T'
+                && date.charAt(13) == ':' && date.charAt(16) == ':') {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 5, 2);
+            int day = digits(date, 8, 2);
+            int hour = digits(date, 11, 2);
+            int minute = digits(date, 14, 2);
+            int second = digits(date, 17, 2);
+
+            // Before 1600 the calendar switches to Julian, leave that to SimpleDateFormat
+            if (year >= 1600 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+                    && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                        + ((hour * 60L + minute) * 60L + second) * 1000L;
+            }
+        }
+
+        return DATE_FORMAT.get().parse(date).getTime();
+    }
+
+    /**
+     * @return value of the decimal digits, or -1 if any character is not a digit
+     */
+    private static int digits(String text, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return isLeapYear(year) ? 29 : 28;
+        } else if (month == 4 || month == 6 || month == 9 || month == 11) {
+            return 30;
+        } else {
+            return 31;
+        }
+    }
+
+    private static long daysSinceEpoch(int year, int month, int day) {
+        long yearsBefore = year - 1L;
+        long days = 365L * (year - 1970)
+                + (yearsBefore / 4 - yearsBefore / 100 + yearsBefore / 400)
+                - (1969 / 4 - 1969 / 100 + 1969 / 400);
+        days += DAYS_BEFORE_MONTH[month - 1] + day - 1;
+        if (month > 2 && isLeapYear(year)) {
+            days += 1;
+        }
+
+        return days;
+    }
+
+    private static String formatDate(Date date) {
+        return DATE_FORMAT.get().format(date);
+    }
+
+    /**
+     * @param dates
+     * @return the earliest of the passed in dates, ignoring ones that can't be parsed, or null if there is none
+     */
+    private static String getEarliest(Collection<String> dates) {
+        String earliest = null;
+        long earliestTime = Long.MAX_VALUE;
+        for (String date : dates) {
+            try {
+                long time = getTime(date);
+                if (earliest == null || time < earliestTime) {
+                    earliest = date;
+                    earliestTime = time;
+                }
+            } catch (java.text.ParseException e) {
+                // Not comparable, skip
+            }
+        }
+
+        return earliest;
     }
 
     public static boolean isPast(String date) {
         try {
-            return !getDate(date).after(new Date());
+            return getTime(date) <= System.currentTimeMillis();
         } catch (java.text.ParseException e) {
             return false; // Senseless response. Assume user has already validated the date
         }
@@ -92,69 +390,192 @@ public class PipelineObject {
 
     public static boolean validateDate(String date) {
         try {
-            return getDate(date).after(new Date(1)); // crude check that we don't have epoch start
+            return getTime(date) > 1; // crude check that we don't have epoch start
         } catch (java.text.ParseException e) {
             return false;
         }
     }
 
     public String getJson() {
-        return pipeline.toJSONString();
+        try {
+            return MAPPER.writeValueAsString(pipeline);
+        } catch (JsonProcessingException e) {
+            // Serialising a tree we parsed ourselves does not fail
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
-     * Parse the JSON file into AWS Pipeline model.
-     * Warning: Lots of ugly casts here.
-     * TODO: See if can be parsed safely in GSON or Jackson.
+     * Map the JSON definition into AWS Pipeline model.
+     * The conversion is done once and reused until the definition is modified,
+     * so the returned objects must not be changed by the caller.
      *
      * @return AWS PipelineObject
      */
     public List<com.amazonaws.services.datapipeline.model.PipelineObject> getAWSObjects() {
-        ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject> list =
-                new ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject>();
-        if (isValid()) {
-            JSONArray objectArray = (JSONArray) pipeline.get("objects");
-            for (Object object : objectArray) {
-                com.amazonaws.services.datapipeline.model.PipelineObject pipelineObject
-                        = new com.amazonaws.services.datapipeline.model.PipelineObject();
-                LinkedHashSet<Field> fields = new LinkedHashSet<Field>();
-                JSONObject jsonObject = (JSONObject) object;
-
-                for (String key : (Set<String>) jsonObject.keySet()) {
-                    if (key.equals("id")) {
-                        pipelineObject.setId((String) jsonObject.get(key));
-                    } else if (key.equals("name")) {
-                        pipelineObject.setName((String) jsonObject.get(key));
-                    } else {
-                        parseFields(fields, jsonObject.get(key), key);
-                    }
+        if (awsObjects == null) {
+            ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject> list =
+                    new ArrayList<com.amazonaws.services.datapipeline.model.PipelineObject>();
+            IdentityHashMap<JsonNode, com.amazonaws.services.datapipeline.model.PipelineObject> byNode =
+                    new IdentityHashMap<JsonNode, com.amazonaws.services.datapipeline.model.PipelineObject>();
+            if (isValid()) {
+                for (JsonNode object : getObjects()) {
+                    com.amazonaws.services.datapipeline.model.PipelineObject awsObject = toAWSObject(object);
+                    list.add(awsObject);
+                    byNode.put(object, awsObject);
                 }
-
-                pipelineObject.setFields(fields);
-                list.add(pipelineObject);
             }
+
+            awsObjectsByNode = byNode;
+            awsObjects = Collections.unmodifiableList(list);
         }
 
-        return list;
+        return awsObjects;
+    }
+
+    private com.amazonaws.services.datapipeline.model.PipelineObject getAWSObject(JsonNode object) {
+        getAWSObjects();
+        return awsObjectsByNode.get(object);
+    }
+
+    private void invalidateAWSObjects() {
+        awsObjects = null;
+        awsObjectsByNode = null;
     }
 
     public void writeDOT(Writer writer) {
         new GraphWriter().writeDOT(writer, this);
     }
 
-    private HashSet<Field> parseFields(LinkedHashSet<Field> accumulator, Object json, String key) {
-        if (json instanceof String) {
-            accumulator.add(new Field().withKey(key).withStringValue((String) json));
-        } else if (json instanceof JSONArray) {
-            JSONArray fieldArray = (JSONArray) json;
-            for (Object field : fieldArray) {
+    private Iterable<JsonNode> getObjects() {
+        JsonNode objects = pipeline.get("objects");
+        if (objects == null || !objects.isArray()) {
+            return Collections.emptyList();
+        }
+
+        return (ArrayNode) objects;
+    }
+
+    private List<ObjectNode> getNodesByType(String type) {
+        List<ObjectNode> objects = objectsByType.get(type);
+        return objects == null ? Collections.<ObjectNode>emptyList() : objects;
+    }
+
+    private static boolean isDatedSchedule(ObjectNode schedule) {
+        JsonNode startDateTime = schedule.get(START_DATE_TIME);
+        return startDateTime != null && startDateTime.isTextual();
+    }
+
+    private void index() {
+        for (JsonNode node : getObjects()) {
+            if (!node.isObject()) {
+                continue;
+            }
+
+            ObjectNode object = (ObjectNode) node;
+            String id = object.path("id").textValue();
+            if (id != null && !objectsById.containsKey(id)) {
+                objectsById.put(id, object);
+            }
+
+            String type = object.path("type").textValue();
+            if (type != null) {
+                addTo(objectsByType, type, object);
+            }
+
+            Iterator<Map.Entry<String, JsonNode>> iterator = object.fields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> entry = iterator.next();
+                indexReferences(id, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void indexReferences(String id, String key, JsonNode json) {
+        if (json.isArray()) {
+            for (JsonNode field : json) {
+                indexReferences(id, key, field);
+            }
+        } else if (json.isObject()) {
+            String target = json.path("ref").textValue();
+            if (id != null && target != null) {
+                Reference reference = new Reference(id, key, target);
+                addTo(referencesFrom, id, reference);
+                addTo(referencesTo, target, reference);
+            }
+        }
+    }
+
+    private static <T> void addTo(Map<String, List<T>> map, String key, T value) {
+        List<T> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<T>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private com.amazonaws.services.datapipeline.model.PipelineObject toAWSObject(JsonNode object) {
+        com.amazonaws.services.datapipeline.model.PipelineObject pipelineObject
+                = new com.amazonaws.services.datapipeline.model.PipelineObject();
+        LinkedHashSet<Field> fields = new LinkedHashSet<Field>();
+
+        Iterator<Map.Entry<String, JsonNode>> iterator = object.fields();
+        while (iterator.hasNext()) {
+            Map.Entry<String, JsonNode> entry = iterator.next();
+            String key = entry.getKey();
+            if (key.equals("id")) {
+                pipelineObject.setId(entry.getValue().textValue());
+            } else if (key.equals("name")) {
+                pipelineObject.setName(entry.getValue().textValue());
+            } else {
+                parseFields(fields, entry.getValue(), key);
+            }
+        }
+
+        pipelineObject.setFields(fields);
+        return pipelineObject;
+    }
+
+    private HashSet<Field> parseFields(LinkedHashSet<Field> accumulator, JsonNode json, String key) {
+        if (json.isTextual()) {
+            accumulator.add(new Field().withKey(key).withStringValue(json.textValue()));
+        } else if (json.isArray()) {
+            for (JsonNode field : json) {
                 parseFields(accumulator, field, key);
             }
-        } else if (json instanceof JSONObject) {
-            String refValue = (String) ((JSONObject) json).get("ref");
-            accumulator.add(new Field().withKey(key).withRefValue(refValue));
+        } else if (json.isObject()) {
+            JsonNode refValue = json.get("ref");
+            accumulator.add(new Field().withKey(key).withRefValue(refValue == null ? null : refValue.textValue()));
         }
 
         return accumulator;
     }
+
+    /**
+     * Reference from a field of one object to another object.
+     */
+    public static class Reference {
+        private final String from;
+        private final String key;
+        private final String to;
+
+        public Reference(String from, String key, String to) {
+            this.from = from;
+            this.key = key;
+            this.to = to;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getTo() {
+            return to;
+        }
+    }
 }
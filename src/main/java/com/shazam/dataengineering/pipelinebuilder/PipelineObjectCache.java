@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed pipeline definitions, least recently used first out once their total file size exceeds the limit.
+ * Entries are keyed by path, modification time and length, so a changed file is parsed again.
+ * Cached pipelines are never handed out, callers get a copy they are free to modify.
+ * Files which fail to parse are not cached.
+ */
+public class PipelineObjectCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PipelineObjectCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param file pipeline definition
+     * @return copy of the parsed pipeline, which may be invalid like any parsed pipeline
+     * @throws IOException if the file can not be read
+     */
+    public PipelineObject get(File file) throws IOException {
+        String key = getKey(file);
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return new PipelineObject(entry.pipeline);
+        }
+
+        misses.incrementAndGet();
+        // Parsed outside the lock, so other pipelines can be read meanwhile
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        PipelineObject pipeline;
+        try {
+            pipeline = new PipelineObject(reader);
+        } finally {
+            reader.close();
+        }
+
+        // Files which are not pipelines would only take up room
+        if (pipeline.isValid()) {
+            put(key, new Entry(pipeline, file.length()));
+        }
+        return new PipelineObject(pipeline);
+    }
+
+    public synchronized void invalidate() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of the files of cached pipelines
+     */
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        // Too large to ever fit, so it would only push out everything else
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.bytes;
+        }
+        totalBytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            totalBytes -= eldest.getValue().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static String getKey(File file) {
+        return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+    }
+
+    private static class Entry {
+        private final PipelineObject pipeline;
+        private final long bytes;
+
+        private Entry(PipelineObject pipeline, long bytes) {
+            this.pipeline = pipeline;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -21,18 +21,22 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import org.apache.commons.codec.digest.DigestUtils;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class PipelineProcessor {
     public static final String FILE_NAME_FORMAT = "%s%d-%s-%d.json";
+    public static final String SCRIPT_DIRECTORY = "scripts";
+    private static final Pattern ANT_PATTERN_CHARACTERS = Pattern.compile("[,*?\\s]");
+    private static final Pattern MULTILINE_STRING =
+            Pattern.compile("\"\"\"([^\"\\\\]*(\\\\.[^\"\\\\]*)*)\"\"\"", Pattern.MULTILINE);
 
     private AbstractBuild build;
     private BuildListener listener;
@@ -41,7 +45,17 @@ public class PipelineProcessor {
     private String name;
     private int buildNumber;
     private String s3Url;
-    private HashMap<S3Environment, String> s3ScriptToUrl = new HashMap<S3Environment, String>();
+    private boolean parallel;
+    private boolean distinctGraphsOnly;
+    private String scriptIncludes = WorkspaceIndex.DEFAULT_INCLUDES;
+    private String scriptExcludes = WorkspaceIndex.DEFAULT_EXCLUDES;
+    private ConcurrentHashMap<S3Environment, String> s3ScriptToUrl = new ConcurrentHashMap<S3Environment, String>();
+    private Set<String> archivedScripts = new HashSet<String>();
+    private HashMap<String, String> scriptDigests = new HashMap<String, String>();
+    private Map<String, Run.Artifact> upstreamArtifacts;
+    private ConcurrentHashMap<String, String> graphSignatureToFile = new ConcurrentHashMap<String, String>();
+    private ConcurrentHashMap<String, PipelineManifest.Entry> manifestEntries =
+            new ConcurrentHashMap<String, PipelineManifest.Entry>();
 
     public PipelineProcessor(AbstractBuild build, Launcher launcher, BuildListener listener) {
         this.listener = listener;
@@ -52,6 +66,29 @@ public class PipelineProcessor {
         this.buildNumber = build.getNumber();
     }
 
+    /**
+     * Processor for a single environment of a parallel run.
+     * Shares all state with the parent, but logs into its own listener.
+     *
+     * @param parent
+     * @param listener
+     */
+    private PipelineProcessor(PipelineProcessor parent, BuildListener listener) {
+        this.listener = listener;
+        this.launcher = parent.launcher;
+        this.build = parent.build;
+        this.environments = parent.environments;
+        this.name = parent.name;
+        this.buildNumber = parent.buildNumber;
+        this.s3Url = parent.s3Url;
+        this.s3ScriptToUrl = parent.s3ScriptToUrl;
+        this.archivedScripts = parent.archivedScripts;
+        this.scriptDigests = parent.scriptDigests;
+        this.distinctGraphsOnly = parent.distinctGraphsOnly;
+        this.graphSignatureToFile = parent.graphSignatureToFile;
+        this.manifestEntries = parent.manifestEntries;
+    }
+
     public void setEnvironments(Environment[] environmentArray) {
         environments = new ArrayList<Environment>();
         environments.addAll(Arrays.asList(environmentArray));
@@ -61,40 +98,399 @@ public class PipelineProcessor {
         this.s3Url = s3Url;
     }
 
+    /**
+     * Process environments concurrently instead of one after another.
+     *
+     * @param parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Write the DOT graph only for the first environment with a given graph,
+     * as environments usually differ in values rather than in structure.
+     *
+     * @param distinctGraphsOnly
+     */
+    public void setDistinctGraphsOnly(boolean distinctGraphsOnly) {
+        this.distinctGraphsOnly = distinctGraphsOnly;
+    }
+
+    /**
+     * Limit the workspace files searched for scripts.
+     *
+     * @param includes Ant style glob
+     * @param excludes Ant style glob
+     */
+    public void setScriptFilter(String includes, String excludes) {
+        this.scriptIncludes = includes;
+        this.scriptExcludes = excludes;
+    }
+
     public Map<S3Environment, String> getS3Urls() {
-        return s3ScriptToUrl;
+        return new HashMap<S3Environment, String>(s3ScriptToUrl);
+    }
+
+    /**
+     * @return Map of archived script name to the MD5 digest of its content
+     */
+    public Map<String, String> getScriptDigests() {
+        return new HashMap<String, String>(scriptDigests);
     }
 
     public boolean process(FilePath file) {
         if (checkExists(file)) {
             try {
-                String text = file.readToString();
-                int counter = 1;
-
-                for (Environment env : environments) {
-                    String fileName = getFileName(env, counter);
-                    counter += 1;
-                    storeProcessedFile(fileName, text, env);
-                    writeDOT(fileName);
-                    // TODO: attempt to convert to png
-                    // Using CLI: dot -Tpng input.dot > output.png
+                CompiledTemplate template = preprocess(file.readToString());
+                if (template == null) {
+                    return false;
                 }
-                return true;
+                try {
+                    archiveScripts(template);
+                } catch (IOException e) {
+                    listener.error("Failed to archive scripts: " + e.getMessage());
+                    return false;
+                }
+
+                boolean success;
+                if (parallel && environments.size() > 1) {
+                    success = processConcurrently(template);
+                } else {
+                    success = processSequentially(template);
+                }
+
+                // Pipelines of the other environments can still be deployed
+                try {
+                    writeManifest();
+                } catch (IOException e) {
+                    listener.error("Failed to write the pipeline manifest: " + e.getMessage());
+                    return false;
+                }
+                return success;
             } catch (IOException e) {
                 listener.error("Failed to read the pipeline object");
                 return false;
+            } catch (InterruptedException e) {
+                listener.error("Interrupted while archiving scripts");
+                return false;
             }
         } else {
             return false;
         }
     }
 
-    private void writeDOT(String filename) throws IOException {
-        FilePath pipelinePath = new FilePath(new FilePath(build.getArtifactsDir()), filename);
-        PipelineObject pipelineObject = new PipelineObject(pipelinePath.readToString());
-        FileWriter dotWriter = new FileWriter(new File(build.getArtifactsDir(), filename.replace(".json", ".dot")));
+    /**
+     * Run every environment one after another. Like a concurrent run,
+     * a failed environment is reported and does not stop the others.
+     *
+     * @param template
+     * @return true if every environment was processed
+     */
+    private boolean processSequentially(CompiledTemplate template) {
+        boolean success = true;
+        int counter = 1;
+        for (Environment env : environments) {
+            String fileName = getFileName(env, counter);
+            counter += 1;
+            try {
+                processEnvironment(fileName, template, env);
+            } catch (IOException e) {
+                listener.error("Failed to process environment %s: %s", env.getName(), e);
+                success = false;
+            }
+        }
 
-        pipelineObject.writeDOT(dotWriter);
+        return success;
+    }
+
+    /**
+     * Run every environment on a thread pool bounded by the number of processors.
+     * File names are assigned up front, so they are the same as in a sequential run.
+     * Each environment logs into its own buffer, which is copied into the build log
+     * in configuration order once that environment is done.
+     *
+     * @param template
+     * @return
+     */
+    private boolean processConcurrently(final CompiledTemplate template) {
+        int threads = Math.min(environments.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+        ArrayList<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>();
+        boolean success = true;
+
+        try {
+            int counter = 1;
+            for (final Environment env : environments) {
+                final String fileName = getFileName(env, counter);
+                counter += 1;
+
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                final PipelineProcessor processor = new PipelineProcessor(this,
+                        new StreamBuildListener(log, StandardCharsets.UTF_8));
+                logs.add(log);
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        processor.processEnvironment(fileName, template, env);
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    listener.error("Failed to process environment %s: %s",
+                            environments.get(i).getName(), e.getCause());
+                    success = false;
+                } finally {
+                    listener.getLogger().write(logs.get(i).toByteArray());
+                }
+            }
+        } catch (InterruptedException e) {
+            listener.error("Interrupted while processing environments");
+            Thread.currentThread().interrupt();
+            success = false;
+        } catch (IOException e) {
+            listener.error("Failed to write environment log");
+            success = false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return success;
+    }
+
+    /**
+     * Environment independent processing, done once per build.
+     * Inlines multiline strings, validates the result and compiles it into a template.
+     *
+     * @param text raw pipeline definition
+     * @return compiled definition, or null if it is not a valid pipeline object
+     */
+    private CompiledTemplate preprocess(String text) {
+        String singleLineJson = performInlining(text);
+
+        PipelineObject pipelineObject = new PipelineObject(singleLineJson);
+        if (!pipelineObject.isValid()) {
+            listener.error("Pipeline definition is not a valid pipeline object");
+            listener.getLogger().println(pipelineObject.getError());
+            return null;
+        }
+
+        return CompiledTemplate.compile(singleLineJson);
+    }
+
+    /**
+     * Find and archive every script referenced by any of the environments, before they are processed.
+     * Scripts are looked up in an index of the workspace first, and all of them are
+     * transferred from the workspace in a single archive. Remaining keys are looked up
+     * in upstream project artifacts. Scripts which fail to copy are reported and left unreplaced.
+     *
+     * @param template
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void archiveScripts(CompiledTemplate template) throws IOException, InterruptedException {
+        Set<String> candidates = getScriptCandidates(template);
+        if (s3Url == null || s3Url.isEmpty() || candidates.isEmpty()) {
+            return;
+        }
+
+        FilePath workspace = build.getWorkspace();
+        WorkspaceIndex workspaceIndex = WorkspaceIndex.build(workspace, scriptIncludes, scriptExcludes);
+        listener.getLogger().println(String.format("[INFO] Indexed %d workspace files", workspaceIndex.size()));
+
+        FilePath scriptDirectory = new FilePath(new FilePath(build.getArtifactsDir()), SCRIPT_DIRECTORY);
+        HashMap<String, String> workspaceScripts = new HashMap<String, String>();
+        for (String candidate : candidates) {
+            String path = workspaceIndex.getPath(candidate);
+            if (path != null) {
+                listener.getLogger().println("[INFO] Found an artifact at " + path);
+                workspaceScripts.put(candidate, path);
+            } else {
+                try {
+                    if (archiveUpstreamArtifact(candidate, scriptDirectory.child(candidate))) {
+                        archivedScripts.add(candidate);
+                    }
+                } catch (IOException e) {
+                    listener.error("Error in archiving script %s: %s", candidate, e.getMessage());
+                }
+            }
+        }
+
+        archivedScripts.addAll(copyFromWorkspace(workspace, workspaceScripts, scriptDirectory));
+        digestScripts(scriptDirectory);
+    }
+
+    /**
+     * Digest archived scripts, so deployment can skip scripts already in S3.
+     *
+     * @param scriptDirectory
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void digestScripts(FilePath scriptDirectory) throws IOException, InterruptedException {
+        for (String script : archivedScripts) {
+            try {
+                InputStream content = scriptDirectory.child(script).read();
+                try {
+                    scriptDigests.put(script, DigestUtils.md5Hex(content));
+                } finally {
+                    content.close();
+                }
+            } catch (IOException e) {
+                // Without a digest the script is always uploaded
+                listener.getLogger().println("[WARN] Failed to digest script " + script + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copy files from the workspace into the script directory.
+     * All files are sent in one archive stream into a staging directory in the build directory,
+     * outside of the artifacts, from which they are moved under their file names.
+     * Paths which can't be expressed as an Ant pattern, and all files if the archive fails, are copied one by one.
+     *
+     * @param workspace
+     * @param scripts         script file name to path relative to the workspace
+     * @param scriptDirectory
+     * @return names of the scripts copied
+     * @throws IOException if the staging directory can not be created
+     * @throws InterruptedException
+     */
+    private Set<String> copyFromWorkspace(FilePath workspace, Map<String, String> scripts, FilePath scriptDirectory)
+            throws IOException, InterruptedException {
+        HashSet<String> copied = new HashSet<String>();
+        if (scripts.isEmpty()) {
+            return copied;
+        }
+
+        StringBuilder fileMask = new StringBuilder();
+        HashMap<String, String> batched = new HashMap<String, String>();
+        for (Map.Entry<String, String> script : scripts.entrySet()) {
+            String path = script.getValue();
+            if (ANT_PATTERN_CHARACTERS.matcher(path).find()) {
+                copyScript(workspace.child(path), scriptDirectory.child(script.getKey()), false, copied);
+            } else {
+                if (fileMask.length() > 0) {
+                    fileMask.append(",");
+                }
+                fileMask.append(path);
+                batched.put(script.getKey(), path);
+            }
+        }
+
+        if (batched.isEmpty()) {
+            return copied;
+        }
+
+        scriptDirectory.mkdirs();
+        FilePath staging = new FilePath(build.getRootDir()).createTempDir("scripts", null);
+        try {
+            boolean staged = true;
+            try {
+                workspace.copyRecursiveTo(fileMask.toString(), staging);
+            } catch (IOException e) {
+                listener.getLogger().println("[WARN] Failed to copy scripts in one archive, copying them one by one: "
+                        + e.getMessage());
+                staged = false;
+            }
+
+            for (Map.Entry<String, String> script : batched.entrySet()) {
+                FilePath source = staged ? staging.child(script.getValue()) : workspace.child(script.getValue());
+                copyScript(source, scriptDirectory.child(script.getKey()), staged, copied);
+            }
+        } finally {
+            staging.deleteRecursive();
+        }
+
+        return copied;
+    }
+
+    /**
+     * Copy, or move out of the staging directory, a single script. Failures are reported and skipped.
+     */
+    private void copyScript(FilePath source, FilePath target, boolean move, Set<String> copied)
+            throws InterruptedException {
+        try {
+            if (!source.exists()) {
+                throw new IOException(source.getRemote() + " does not exist");
+            }
+            if (move) {
+                source.renameTo(target);
+            } else {
+                target.copyFrom(source);
+            }
+            copied.add(target.getName());
+        } catch (IOException e) {
+            listener.error("Error in archiving script %s: %s", target.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * @param template
+     * @return keys not replaced by configuration parameters in at least one environment
+     */
+    private Set<String> getScriptCandidates(CompiledTemplate template) {
+        LinkedHashSet<String> candidates = new LinkedHashSet<String>();
+        for (Environment env : environments) {
+            candidates.addAll(getUnresolvedKeys(template, resolveNestedValues(getSubstitutionMap(env))));
+        }
+
+        return candidates;
+    }
+
+    private void processEnvironment(String fileName, CompiledTemplate template, Environment environment)
+            throws IOException {
+        PipelineObject pipelineObject = storeProcessedFile(fileName, template, environment);
+        if (pipelineObject == null) {
+            throw new IOException("Failed to store processed pipeline " + fileName);
+        }
+        manifestEntries.put(fileName, new PipelineManifest.Entry(fileName, environment.getName(),
+                pipelineObject.getScheduleDate(), pipelineObject.getObjectCount()));
+        writeDOT(fileName, pipelineObject);
+        // TODO: attempt to convert to png
+        // Using CLI: dot -Tpng input.dot > output.png
+    }
+
+    /**
+     * Record the processed pipelines in configuration order, for the deployment action to list them.
+     * Environments which failed are left out.
+     */
+    private void writeManifest() throws IOException {
+        PipelineManifest manifest = new PipelineManifest();
+        int counter = 1;
+        for (Environment env : environments) {
+            PipelineManifest.Entry entry = manifestEntries.get(getFileName(env, counter));
+            counter += 1;
+            if (entry != null) {
+                manifest.add(entry);
+            }
+        }
+
+        manifest.write(new File(build.getRootDir(), PipelineManifest.FILENAME));
+    }
+
+    private void writeDOT(String filename, PipelineObject pipelineObject) throws IOException {
+        if (distinctGraphsOnly) {
+            String signature = new GraphWriter().getSignature(pipelineObject);
+            String previous = graphSignatureToFile.putIfAbsent(signature, filename);
+            if (previous != null) {
+                listener.getLogger().println(String.format(
+                        "[INFO] Graph of %s is the same as graph of %s, skipping DOT file", filename, previous));
+                return;
+            }
+        }
+
+        FileWriter dotWriter = new FileWriter(new File(build.getArtifactsDir(), filename.replace(".json", ".dot")));
+        try {
+            pipelineObject.writeDOT(dotWriter);
+        } finally {
+            dotWriter.close();
+        }
     }
 
     private String getFileName(Environment environment, int counter) {
@@ -110,40 +506,76 @@ public class PipelineProcessor {
         return String.format(FILE_NAME_FORMAT, prefix, counter, name, buildNumber);
     }
 
-    private boolean storeProcessedFile(String fileName, String json, Environment environment) {
-        String singleLineJson = performInlining(json);
-        String newJson = performSubstitutions(singleLineJson, fileName, environment);
-        List<String> warnings = warnForUnreplacedKeys(newJson);
+    /**
+     * Substitute environment values into the preprocessed definition and store it as an artifact.
+     *
+     * @param fileName
+     * @param template definition returned by {@link #preprocess(String)}
+     * @param environment
+     * @return the processed pipeline, or null if it could not be stored
+     */
+    private PipelineObject storeProcessedFile(String fileName, CompiledTemplate template, Environment environment) {
+        Map<String, String> substitutions = getSubstitutions(template, fileName, environment);
+        List<String> warnings = warnForUnreplacedKeys(template, substitutions);
         for (String warning : warnings) {
             listener.getLogger().println("[WARN] " + warning);
         }
 
-        // Validate created pipeline
-        PipelineObject pipelineObject = new PipelineObject(json);
+        // Validate before writing, so an invalid definition is never left among the artifacts.
+        // The parsed result is kept for later steps, instead of reading the artifact back.
+        PipelineObject pipelineObject = new PipelineObject(template.reader(substitutions));
         if (!pipelineObject.isValid()) {
             listener.error("Resulting JSON file is invalid pipeline object");
-            return false;
+            listener.getLogger().println(pipelineObject.getError());
+            return null;
         }
 
         FilePath newPath = new FilePath(new FilePath(build.getArtifactsDir()), fileName);
         try {
-            newPath.copyFrom(new ByteArrayInputStream((newJson.getBytes(StandardCharsets.UTF_8))));
-            return true;
+            // Stream straight into the artifact, so only the buffer is held in memory
+            Writer writer = new BufferedWriter(new OutputStreamWriter(newPath.write(), StandardCharsets.UTF_8));
+            try {
+                template.render(substitutions, writer);
+            } finally {
+                writer.close();
+            }
         } catch (IOException e) {
             listener.getLogger().println(e);
-            return false;
+            deletePartialFile(newPath);
+            return null;
         } catch (InterruptedException e) {
             listener.getLogger().println(e);
-            return false;
+            deletePartialFile(newPath);
+            return null;
         }
+
+        return pipelineObject;
     }
 
-    private List<String> warnForUnreplacedKeys(String json) {
+    private void deletePartialFile(FilePath path) {
+        try {
+            path.delete();
+        } catch (IOException e) {
+            listener.getLogger().println("[WARN] Failed to delete partially written " + path.getName());
+        } catch (InterruptedException e) {
+            listener.getLogger().println("[WARN] Failed to delete partially written " + path.getName());
+        }
+    }
+
+    private List<String> warnForUnreplacedKeys(CompiledTemplate template, Map<String, String> substitutions) {
         ArrayList<String> warnings = new ArrayList<String>();
-        Pattern pattern = Pattern.compile("\\$\\{([^}]+)\\}");
-        Matcher matcher = pattern.matcher(json);
-        while (matcher.find()) {
-            warnings.add(String.format("Unreplaced token found in pipeline object: %s", matcher.group()));
+        // One warning per occurrence, as when the output was scanned for tokens
+        for (String key : template.getUnresolvedTokens(substitutions)) {
+            warnings.add(String.format("Unreplaced token found in pipeline object: ${%s}", key));
+        }
+        for (String key : template.getKeys()) {
+            String value = substitutions.get(key);
+            if (value != null && value.contains("${")) {
+                // Values are resolved already, so any token left refers to a missing key or to a cycle
+                for (String nested : CompiledTemplate.compile(value).getKeys()) {
+                    warnings.add(String.format("Unreplaced token found in value of %s: ${%s}", key, nested));
+                }
+            }
         }
 
         return warnings;
@@ -162,8 +594,7 @@ public class PipelineProcessor {
      * @return
      */
     private String performInlining(String json) {
-        Pattern pattern = Pattern.compile("\"\"\"([^\"\\\\]*(\\\\.[^\"\\\\]*)*)\"\"\"", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(json);
+        Matcher matcher = MULTILINE_STRING.matcher(json);
         StringBuffer jsonBuffer = new StringBuffer();
 
         while (matcher.find()) {
@@ -181,129 +612,154 @@ public class PipelineProcessor {
     }
 
     /**
-     * Substitute keys in passed in json by corresponding values.
-     * First pass substitutes environment variables as defined in the build configuration
-     * Second pass looks for scripts to be replaced.
+     * Build the map of values to substitute into the template.
+     * First pass takes environment variables as defined in the build configuration
+     * Second pass looks for scripts matching the remaining keys.
      *
-     * @param json
+     * @param template
      * @param pipelineName
      * @param environment
      * @return
      */
-    private String performSubstitutions(String json, String pipelineName, Environment environment) {
-        Map<String, String> substitutions = getSubstitutionMap(environment);
-        json = substituteMapValues(json, substitutions);
+    private Map<String, String> getSubstitutions(CompiledTemplate template, String pipelineName,
+                                                 Environment environment) {
+        Map<String, String> substitutions = resolveNestedValues(getSubstitutionMap(environment));
 
         // If s3Url is defined, process any unreplaced tokens as scripts
         if (s3Url != null && !s3Url.isEmpty()) {
-            json = substituteScriptUrls(json, pipelineName);
+            substitutions.putAll(getScriptUrls(getUnresolvedKeys(template, substitutions), pipelineName));
+            substitutions = resolveNestedValues(substitutions);
         }
 
-        return json;
+        return substitutions;
     }
 
-    private String substituteMapValues(String json, Map<String, String> substitutions) {
-        String pattern = "(\\$\\{%s\\})";
-        for (String key : substitutions.keySet()) {
-            String replacement = Matcher.quoteReplacement(substitutions.get(key));
-            try {
-                json = json.replaceAll(
-                        String.format(pattern, Pattern.quote(key)),
-                        replacement);
-            } catch (IllegalArgumentException e) {
-                listener.error("Failed to replace %s by %s.", key, replacement);
+    /**
+     * Replace tokens within values by the values of their keys, so a value may refer to another one.
+     * Values are resolved again until nothing changes, at most as many times as there are keys,
+     * so tokens referring to each other in a cycle are left in place.
+     *
+     * @param substitutions
+     * @return the passed in map, with values resolved
+     */
+    private Map<String, String> resolveNestedValues(Map<String, String> substitutions) {
+        for (int pass = 0; pass < substitutions.size(); pass++) {
+            boolean changed = false;
+            for (Map.Entry<String, String> entry : substitutions.entrySet()) {
+                String value = entry.getValue();
+                if (value != null && value.contains("${")) {
+                    String resolved = CompiledTemplate.compile(value).render(substitutions);
+                    if (!resolved.equals(value)) {
+                        entry.setValue(resolved);
+                        changed = true;
+                    }
+                }
+            }
+            if (!changed) {
+                break;
             }
         }
 
-        return json;
+        return substitutions;
     }
 
     /**
-     * Look through json for unreplaced tokens, and see if we can match
-     * them to any files in the workspace. If we can, save the file in the artifacts.
+     * @return keys of the template, and of tokens within values used by it, which have no value
+     */
+    private Set<String> getUnresolvedKeys(CompiledTemplate template, Map<String, String> substitutions) {
+        LinkedHashSet<String> unresolved = new LinkedHashSet<String>(template.getUnresolvedKeys(substitutions));
+        for (String key : template.getKeys()) {
+            String value = substitutions.get(key);
+            if (value != null && value.contains("${")) {
+                unresolved.addAll(CompiledTemplate.compile(value).getUnresolvedKeys(substitutions));
+            }
+        }
+
+        return unresolved;
+    }
+
+    /**
+     * Look through unreplaced tokens, and see if we can match
+     * them to any scripts archived from the workspace or upstream projects.
      * During the deployment, the files would be uploaded to a special S3 bucket for
      * this job. The token is preemptively replaced by this URL.
+     * The URL is keyed by the digest of the script, so builds never overwrite the scripts
+     * of a deployed pipeline, and scripts unchanged since an earlier build are not uploaded again.
+     * Scripts without a digest are kept under the pipeline of the build.
      * <p/>
      * This method assumes s3Url is set properly.
      *
-     * @param json
+     * @param keys
      * @param pipelineName
      * @return
      */
-    private String substituteScriptUrls(String json, String pipelineName) {
-        Pattern pattern = Pattern.compile("\\$\\{([^}]+)\\}");
-        Matcher matcher = pattern.matcher(json);
+    private Map<String, String> getScriptUrls(Set<String> keys, String pipelineName) {
         HashMap<String, String> substitutions = new HashMap<String, String>();
 
-        while (matcher.find()) {
-            String token = matcher.group();
-            String potentialScript = token.substring(2, token.length() - 1);
-            try {
-                if (archiveFile(potentialScript)) {
-                    String scriptUrl = s3Url
-                            + pipelineName.substring(0, pipelineName.lastIndexOf(".json"))
-                            + "/" + potentialScript;
-                    s3ScriptToUrl.put(new S3Environment(pipelineName, potentialScript), scriptUrl);
-                    substitutions.put(potentialScript, scriptUrl);
-                }
-            } catch (Exception e) {
-                listener.error("Error in substituting script URL: " + e.getMessage());
+        for (String potentialScript : keys) {
+            if (archivedScripts.contains(potentialScript)) {
+                String digest = scriptDigests.get(potentialScript);
+                String scriptUrl = s3Url
+                        + (digest != null ? digest : pipelineName.substring(0, pipelineName.lastIndexOf(".json")))
+                        + "/" + potentialScript;
+                s3ScriptToUrl.put(new S3Environment(pipelineName, potentialScript), scriptUrl);
+                substitutions.put(potentialScript, scriptUrl);
             }
         }
 
-        return substituteMapValues(json, substitutions);
+        return substitutions;
     }
 
     /**
-     * Iterates over current workspace and upstream project artifacts to find the defined file name
+     * Looks up upstream build artifacts to find the defined file name
      * If found, archive it as an artifact to make available to the deployment action.
      *
      * @param filename
+     * @param target
      * @return
      */
-    private boolean archiveFile(String filename) throws IOException, InterruptedException {
-        FilePath newPath = new FilePath(new FilePath(build.getArtifactsDir()),
-                "scripts/" + filename);
-        if (newPath.exists()) {
-            // File already copied (perhaps for a different environment
-            return true;
-        }
-
-        // First look recursively in current workspace
-        if (scanDirectory(build.getWorkspace(), filename)) {
+    private boolean archiveUpstreamArtifact(String filename, FilePath target)
+            throws IOException, InterruptedException {
+        Run.Artifact artifact = getUpstreamArtifacts().get(filename);
+        if (artifact != null) {
+            listener.getLogger().println("[INFO] Found an upstream artifact at " + artifact.getHref());
+            target.copyFrom(new FilePath(artifact.getFile()));
             return true;
         }
 
-        // Second look in upstream projects
-        Set<AbstractProject> upstreamProjects = build.getUpstreamBuilds().keySet();
-        for (AbstractProject project : upstreamProjects) {
-            List<Run.Artifact> artifacts = project.getLastBuild().getArtifacts();
-            for (Run.Artifact artifact : artifacts) {
-                if (artifact.getFileName().equals(filename)) {
-                    newPath.copyFrom(new FilePath(artifact.getFile()));
-                    return true;
-                }
-            }
-
-        }
-
         return false;
     }
 
-    private boolean scanDirectory(FilePath directory, String filename) throws IOException, InterruptedException {
-        for (FilePath path : directory.list()) {
-            if (path.isDirectory() && scanDirectory(path, filename)) {
-                return true;
-            } else if (path.getName().equals(filename)) {
-                listener.getLogger().println("[INFO] Found an artifact at " + path.getName());
-                FilePath newPath = new FilePath(new FilePath(build.getArtifactsDir()),
-                        "scripts/" + filename);
-                newPath.copyFrom(path.read());
-                return true;
+    /**
+     * Index artifacts of the upstream builds of this build by file name.
+     * Upstream builds are those whose fingerprinted artifacts this build used, as reported by
+     * {@link AbstractBuild#getUpstreamBuilds()}, not the builds which triggered this one.
+     * Built on first use and reused for every later lookup.
+     * Uses the exact upstream builds rather than the latest build of each upstream project,
+     * which might have been started since.
+     *
+     * @return
+     */
+    private Map<String, Run.Artifact> getUpstreamArtifacts() {
+        if (upstreamArtifacts == null) {
+            upstreamArtifacts = new HashMap<String, Run.Artifact>();
+            Map<AbstractProject, Integer> upstreamBuilds = build.getUpstreamBuilds();
+            for (Map.Entry<AbstractProject, Integer> upstream : upstreamBuilds.entrySet()) {
+                AbstractBuild upstreamBuild = upstream.getKey().getBuildByNumber(upstream.getValue());
+                if (upstreamBuild == null) {
+                    continue;
+                }
+
+                List<Run.Artifact> artifacts = upstreamBuild.getArtifacts();
+                for (Run.Artifact artifact : artifacts) {
+                    if (!upstreamArtifacts.containsKey(artifact.getFileName())) {
+                        upstreamArtifacts.put(artifact.getFileName(), artifact);
+                    }
+                }
             }
         }
 
-        return false;
+        return upstreamArtifacts;
     }
 
     private Map<String, String> getSubstitutionMap(Environment environment) {
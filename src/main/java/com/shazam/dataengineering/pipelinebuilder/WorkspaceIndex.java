@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of file names in the workspace, used to find scripts referenced by the pipeline.
+ * Built in a single walk on the node holding the workspace, instead of listing
+ * directories one remote call at a time.
+ */
+public class WorkspaceIndex {
+    public static final String DEFAULT_INCLUDES = "**/*";
+    public static final String DEFAULT_EXCLUDES = "**/.git/**,**/node_modules/**";
+
+    private final Map<String, String> paths;
+
+    private WorkspaceIndex(Map<String, String> paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Walk the workspace and map every file name to its path.
+     *
+     * @param workspace
+     * @param includes  Ant style glob of files to index
+     * @param excludes  Ant style glob of files and directories to skip
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static WorkspaceIndex build(FilePath workspace, String includes, String excludes)
+            throws IOException, InterruptedException {
+        return new WorkspaceIndex(workspace.act(new Scanner(includes, excludes)));
+    }
+
+    /**
+     * @param filename
+     * @return path of the first file with this name, relative to the workspace, or null if there is none
+     */
+    public String getPath(String filename) {
+        return paths.get(filename);
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    private static class Scanner implements FilePath.FileCallable<HashMap<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String includes;
+        private final String excludes;
+
+        public Scanner(String includes, String excludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+
+        public HashMap<String, String> invoke(File workspace, VirtualChannel channel) throws IOException {
+            HashMap<String, String> paths = new HashMap<String, String>();
+            if (!workspace.isDirectory()) {
+                return paths;
+            }
+
+            DirectoryScanner scanner = Util.createFileSet(workspace, includes, excludes)
+                    .getDirectoryScanner(new Project());
+            for (String path : scanner.getIncludedFiles()) {
+                String filename = new File(path).getName();
+                if (!paths.containsKey(filename)) {
+                    paths.put(filename, path);
+                }
+            }
+
+            return paths;
+        }
+    }
+}
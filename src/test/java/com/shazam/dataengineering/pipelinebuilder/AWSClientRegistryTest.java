@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AWSClientRegistryTest {
+    private AWSClientRegistry registry = new AWSClientRegistry();
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Test
+    public void sameCredentialsAndRegionShouldShareClients() throws Exception {
+        AWSClientRegistry.Clients first = registry.get(new BasicAWSCredentials("id", "secret"), "");
+        AWSClientRegistry.Clients second = registry.get(new BasicAWSCredentials("id", "secret"), "");
+
+        assertSame(first, second);
+        assertSame(first.getCatalog(), second.getCatalog());
+    }
+
+    @Test
+    public void differentRegionShouldGetOwnClients() throws Exception {
+        AWSClientRegistry.Clients first = registry.get(new BasicAWSCredentials("id", "secret"), "");
+        AWSClientRegistry.Clients second = registry.get(new BasicAWSCredentials("id", "secret"), "eu-west-1");
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void changedSecretShouldReplaceClients() throws Exception {
+        AWSClientRegistry.Clients first = registry.get(new BasicAWSCredentials("id", "secret"), "");
+        AWSClientRegistry.Clients second = registry.get(new BasicAWSCredentials("id", "rotated"), "");
+
+        assertNotSame(first, second);
+        assertSame(second, registry.get(new BasicAWSCredentials("id", "rotated"), ""));
+    }
+
+    @Test
+    public void changedSettingsShouldReplaceClients() throws Exception {
+        AWSClientRegistry.Clients first = registry.get(new BasicAWSCredentials("id", "secret"), "");
+
+        registry.configure(10, 1000, 1000, 1000);
+
+        assertNotSame(first, registry.get(new BasicAWSCredentials("id", "secret"), ""));
+        assertTrue(first.isClosed());
+    }
+
+    @Test
+    public void unchangedSettingsShouldKeepClients() throws Exception {
+        AWSClientRegistry.Clients first = registry.get(new BasicAWSCredentials("id", "secret"), "");
+
+        registry.configure(AWSClientRegistry.DEFAULT_MAX_CONNECTIONS, AWSClientRegistry.DEFAULT_CONNECTION_TIMEOUT,
+                AWSClientRegistry.DEFAULT_SOCKET_TIMEOUT, AWSClientRegistry.DEFAULT_CONNECTION_TTL);
+
+        assertSame(first, registry.get(new BasicAWSCredentials("id", "secret"), ""));
+        assertFalse(first.isClosed());
+    }
+
+    @Test
+    public void acquiredClientsShouldStayOpenUntilReleased() throws Exception {
+        AWSClientRegistry.Clients acquired = registry.acquire(new BasicAWSCredentials("id", "secret"), "");
+
+        registry.configure(10, 1000, 1000, 1000);
+        registry.get(new BasicAWSCredentials("id", "rotated"), "");
+
+        assertFalse(acquired.isClosed());
+        acquired.release();
+        assertTrue(acquired.isClosed());
+    }
+
+    @Test
+    public void replacedClientsShouldStayOpenUntilReleased() throws Exception {
+        AWSClientRegistry.Clients acquired = registry.acquire(new BasicAWSCredentials("id", "secret"), "");
+
+        AWSClientRegistry.Clients replacement = registry.acquire(new BasicAWSCredentials("id", "rotated"), "");
+
+        assertNotSame(acquired, replacement);
+        assertFalse(acquired.isClosed());
+        acquired.release();
+        assertTrue(acquired.isClosed());
+        replacement.release();
+        assertFalse(replacement.isClosed());
+    }
+}
@@ -20,8 +20,11 @@ import com.amazonaws.services.datapipeline.DataPipelineClient;
 import com.amazonaws.services.datapipeline.model.*;
 import com.amazonaws.services.datapipeline.model.PipelineObject;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
@@ -29,7 +32,11 @@ import org.mockito.Mockito;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -118,6 +125,36 @@ public class AWSProxyTest {
         assertEquals("", result);
     }
 
+    @Test
+    public void getPipelineIdWithCatalogShouldListPipelinesOnce() throws Exception {
+        List<PipelineIdName> pipelineList = new ArrayList<PipelineIdName>();
+        pipelineList.add(new PipelineIdName().withId("test1").withName("p1-this-is-a-test-pipeline-1"));
+        DataPipelineClient client = getMockDataPipelineClient(pipelineList);
+        AWSProxy proxy = new AWSProxy(client, new PipelineCatalog(PipelineCatalog.DEFAULT_TTL));
+
+        assertEquals("test1", proxy.getPipelineId("p1-this-is-a-test-pipeline-\\d+"));
+        assertEquals("", proxy.getPipelineId("p1-this-is-another-pipeline"));
+
+        verify(client, times(1)).listPipelines(any(ListPipelinesRequest.class));
+    }
+
+    @Test
+    public void catalogShouldFollowCreatedAndRemovedPipelines() throws Exception {
+        List<PipelineIdName> pipelineList = new ArrayList<PipelineIdName>();
+        pipelineList.add(new PipelineIdName().withId("test1").withName("p1-test-pipeline-1"));
+        DataPipelineClient client = getMockDataPipelineClient(pipelineList);
+        when(client.createPipeline(any(CreatePipelineRequest.class)))
+                .thenReturn(new CreatePipelineResult().withPipelineId("test2"));
+        AWSProxy proxy = new AWSProxy(client, new PipelineCatalog(PipelineCatalog.DEFAULT_TTL));
+
+        assertEquals("test1", proxy.getPipelineId("p1-test-pipeline-\\d+"));
+        proxy.removePipeline("test1");
+        proxy.createPipeline("p1-test-pipeline-2");
+
+        assertEquals("test2", proxy.getPipelineId("p1-test-pipeline-\\d+"));
+        verify(client, times(1)).listPipelines(any(ListPipelinesRequest.class));
+    }
+
     @Test
     public void uploadFileToS3UrlShouldReturnTrueForSuccessfulUpload() throws Exception {
         AmazonS3 client = Mockito.mock(AmazonS3.class);
@@ -137,6 +174,32 @@ public class AWSProxyTest {
         assertEquals(key, argument.getValue().getKey());
     }
 
+    @Test
+    public void getUnchangedS3UrlsShouldCompareDigestsWithListedObjects() throws Exception {
+        AmazonS3 client = Mockito.mock(AmazonS3.class);
+        ObjectListing listing = new ObjectListing();
+        listing.getObjectSummaries().add(getSummary("prefix/same.pig", "abc"));
+        listing.getObjectSummaries().add(getSummary("prefix/changed.pig", "def"));
+        listing.getObjectSummaries().add(getSummary("prefix/large.jar", "123-4"));
+        Mockito.when(client.listObjects("bucket", "prefix/")).thenReturn(listing);
+        ObjectMetadata largeMetadata = new ObjectMetadata();
+        largeMetadata.addUserMetadata(AWSProxy.DIGEST_METADATA, "789");
+        Mockito.when(client.getObjectMetadata("bucket", "prefix/large.jar")).thenReturn(largeMetadata);
+
+        HashMap<String, String> digests = new HashMap<String, String>();
+        digests.put("s3://bucket/prefix/same.pig", "abc");
+        digests.put("s3://bucket/prefix/changed.pig", "abc");
+        digests.put("s3://bucket/prefix/large.jar", "789");
+        digests.put("s3://bucket/prefix/new.pig", "abc");
+
+        Set<String> unchanged = AWSProxy.getUnchangedS3Urls(client, digests);
+
+        assertEquals(2, unchanged.size());
+        assertTrue(unchanged.contains("s3://bucket/prefix/same.pig"));
+        assertTrue(unchanged.contains("s3://bucket/prefix/large.jar"));
+        verify(client, times(1)).listObjects(anyString(), anyString());
+    }
+
     @Test
     public void hasRunningTasksShouldReturnTrueForObjectsInRunningState() throws Exception {
         List<String> objectIdList1 = new ArrayList<String>();
@@ -169,12 +232,17 @@ public class AWSProxyTest {
 
         DataPipelineClient dataPipelineClient = Mockito.mock(DataPipelineClient.class);
 
+        Query runningQuery = new Query().withSelectors(new Selector()
+                .withFieldName("@status")
+                .withOperator(new Operator().withType(OperatorType.EQ).withValues("RUNNING")));
         QueryObjectsRequest request1 = new QueryObjectsRequest()
                 .withSphere("ATTEMPT")
-                .withPipelineId("test-pipeline");
+                .withPipelineId("test-pipeline")
+                .withQuery(runningQuery);
         QueryObjectsRequest request2 = new QueryObjectsRequest()
                 .withSphere("ATTEMPT")
                 .withPipelineId("test-pipeline")
+                .withQuery(runningQuery)
                 .withMarker("testMarker");
         Mockito.when(dataPipelineClient.queryObjects(request1))
                 .thenReturn(queryResult1);
@@ -200,6 +268,41 @@ public class AWSProxyTest {
         AWSProxy proxy = new AWSProxy(dataPipelineClient);
 
         assertTrue(proxy.hasRunningTasks("test-pipeline"));
+
+        ExecutorService pager = Executors.newSingleThreadExecutor();
+        try {
+            AWSProxy prefetchingProxy = new AWSProxy(dataPipelineClient, null, pager);
+            assertTrue(prefetchingProxy.hasRunningTasks("test-pipeline"));
+        } finally {
+            pager.shutdownNow();
+        }
+    }
+
+    @Test
+    public void hasRunningTasksShouldDescribeObjectsInBatches() throws Exception {
+        List<String> objectIds = new ArrayList<String>();
+        for (int i = 0; i < 60; i++) {
+            objectIds.add("obj" + i);
+        }
+
+        QueryObjectsResult queryResult = Mockito.mock(QueryObjectsResult.class);
+        Mockito.when(queryResult.getIds()).thenReturn(objectIds);
+        Mockito.when(queryResult.getHasMoreResults()).thenReturn(false);
+        DescribeObjectsResult describeResult = Mockito.mock(DescribeObjectsResult.class);
+        Mockito.when(describeResult.getPipelineObjects()).thenReturn(new ArrayList<PipelineObject>());
+
+        DataPipelineClient dataPipelineClient = Mockito.mock(DataPipelineClient.class);
+        Mockito.when(dataPipelineClient.queryObjects(any(QueryObjectsRequest.class))).thenReturn(queryResult);
+        ArgumentCaptor<DescribeObjectsRequest> describeRequests = ArgumentCaptor.forClass(DescribeObjectsRequest.class);
+        Mockito.when(dataPipelineClient.describeObjects(describeRequests.capture())).thenReturn(describeResult);
+
+        AWSProxy proxy = new AWSProxy(dataPipelineClient);
+
+        assertFalse(proxy.hasRunningTasks("test-pipeline"));
+        assertEquals(3, describeRequests.getAllValues().size());
+        assertEquals(25, describeRequests.getAllValues().get(0).getObjectIds().size());
+        assertEquals(25, describeRequests.getAllValues().get(1).getObjectIds().size());
+        assertEquals(10, describeRequests.getAllValues().get(2).getObjectIds().size());
     }
 
 
@@ -214,6 +317,14 @@ public class AWSProxyTest {
         return proxy.getPipelineId(regex);
     }
 
+    private S3ObjectSummary getSummary(String key, String eTag) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("bucket");
+        summary.setKey(key);
+        summary.setETag(eTag);
+        return summary;
+    }
+
     private DataPipelineClient getMockDataPipelineClient(List<PipelineIdName> pipelineList) {
         ListPipelinesResult listPipelinesResult = Mockito.mock(ListPipelinesResult.class);
         DataPipelineClient dataPipelineClient = Mockito.mock(DataPipelineClient.class);
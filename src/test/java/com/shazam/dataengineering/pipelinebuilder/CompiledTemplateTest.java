@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import org.junit.Test;
+
+import hudson.util.IOUtils;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CompiledTemplateTest {
+    @Test
+    public void compileShouldCollectKeysInOrderOfAppearance() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${b} ${a} ${b} ${} ${c");
+
+        Set<String> keys = template.getKeys();
+        Iterator<String> iterator = keys.iterator();
+
+        assertEquals(2, keys.size());
+        assertEquals("b", iterator.next());
+        assertEquals("a", iterator.next());
+    }
+
+    @Test
+    public void renderShouldReplaceKnownTokensAndKeepUnknownOnes() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("{\"a\":\"${a}\",\"b\":\"${b}\",\"c\":\"$${c\"}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("a", "$1\\value");
+
+        assertEquals("{\"a\":\"$1\\value\",\"b\":\"${b}\",\"c\":\"$${c\"}", template.render(substitutions));
+    }
+
+    @Test
+    public void renderShouldBeRepeatableForDifferentSubstitutions() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${env}-${env}");
+        HashMap<String, String> development = new HashMap<String, String>();
+        development.put("env", "dev");
+        HashMap<String, String> production = new HashMap<String, String>();
+        production.put("env", "prod");
+
+        assertEquals("dev-dev", template.render(development));
+        assertEquals("prod-prod", template.render(production));
+    }
+
+    @Test
+    public void renderShouldReplaceTokensNestedInsideOtherText() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${VAR:-${key}} ${a ${key}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("key", "value");
+
+        assertEquals("${VAR:-value} ${a value", template.render(substitutions));
+        assertEquals(1, template.getKeys().size());
+        assertTrue(template.getUnresolvedKeys(substitutions).isEmpty());
+    }
+
+    @Test
+    public void renderToWriterShouldMatchRenderToString() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("{\"a\":\"${a}\",\"b\":\"${b}\"}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("a", "value");
+        StringWriter writer = new StringWriter();
+
+        template.render(substitutions, writer);
+
+        assertEquals(template.render(substitutions), writer.toString());
+    }
+
+    @Test
+    public void readerShouldMatchRenderToString() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${a}{\"a\":\"${a}\",\"b\":\"${b}\"}${a}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("a", "value");
+
+        assertEquals(template.render(substitutions), IOUtils.toString(template.reader(substitutions)));
+    }
+
+    @Test
+    public void unresolvedTokensShouldListEveryOccurrence() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${a} ${b} ${a}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("b", "value");
+
+        List<String> unresolved = template.getUnresolvedTokens(substitutions);
+
+        assertEquals(2, unresolved.size());
+        assertEquals("a", unresolved.get(0));
+        assertEquals("a", unresolved.get(1));
+    }
+
+    @Test
+    public void unresolvedKeysShouldBeKeysWithoutSubstitution() throws Exception {
+        CompiledTemplate template = CompiledTemplate.compile("${a} ${b} ${c}");
+        HashMap<String, String> substitutions = new HashMap<String, String>();
+        substitutions.put("b", "value");
+        substitutions.put("d", "value");
+
+        Set<String> unresolved = template.getUnresolvedKeys(substitutions);
+
+        assertEquals(2, unresolved.size());
+        assertTrue(unresolved.contains("a"));
+        assertTrue(unresolved.contains("c"));
+    }
+}
@@ -22,7 +22,7 @@ import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
-import org.json.simple.JSONArray;
+import hudson.util.RunList;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.junit.Rule;
@@ -38,6 +38,7 @@ import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -276,6 +277,56 @@ public class DeploymentActionTest {
         method.invoke(action);
     }
 
+    @Test
+    @WithoutJenkins
+    public void missingScriptShouldStopS3DeploymentBeforeUploading() throws Exception {
+        HashMap<S3Environment, String> s3Urls = new HashMap<S3Environment, String>();
+        s3Urls.put(new S3Environment("test.json", "missing1.pig"), "s3://bucket/missing1.pig");
+        s3Urls.put(new S3Environment("test.json", "missing2.pig"), "s3://bucket/missing2.pig");
+
+        DeploymentAction action = new DeploymentAction(
+                getMockAbstractBuild(),
+                s3Urls,
+                new AnonymousAWSCredentials());
+
+        Field pipelineFileField = action.getClass().getDeclaredField("pipelineFile");
+        pipelineFileField.setAccessible(true);
+        pipelineFileField.set(action, "test.json");
+        Method method = action.getClass().getDeclaredMethod("deployScriptsToS3");
+        method.setAccessible(true);
+
+        try {
+            method.invoke(action);
+            fail("Expected deployment to fail");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof DeploymentException);
+        }
+        assertEquals(1, action.getClientMessages().size());
+        assertTrue(action.getClientMessages().get(0).startsWith("[ERROR] Unable to find"));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void s3DeploymentShouldSkipScriptsOfOtherPipelines() throws Exception {
+        HashMap<S3Environment, String> s3Urls = new HashMap<S3Environment, String>();
+        s3Urls.put(new S3Environment("other.json", "script.pig"), "s3://bucket/script.pig");
+
+        DeploymentAction action = new DeploymentAction(
+                getMockAbstractBuild(),
+                s3Urls,
+                new AnonymousAWSCredentials());
+
+        Field pipelineFileField = action.getClass().getDeclaredField("pipelineFile");
+        pipelineFileField.setAccessible(true);
+        pipelineFileField.set(action, "test.json");
+        Method method = action.getClass().getDeclaredMethod("deployScriptsToS3");
+        method.setAccessible(true);
+
+        method.invoke(action);
+
+        assertTrue(action.getClientMessages().isEmpty());
+    }
+
     @Test
     public void writingReportShouldCreateJsonFile() throws Exception {
         DeploymentAction action = new DeploymentAction(
@@ -297,9 +348,7 @@ public class DeploymentActionTest {
         assertEquals(1, jsonContent.size());
 
         JSONParser jsonParser = new JSONParser();
-        JSONObject log = (JSONObject) jsonParser.parse(jsonContent.get(0));
-        JSONArray deployments = (JSONArray) log.get("deployments");
-        JSONObject deployment = (JSONObject) deployments.get(0);
+        JSONObject deployment = (JSONObject) jsonParser.parse(jsonContent.get(0));
 
         assertEquals(String.valueOf(date.getTime()), deployment.get("date").toString());
         assertEquals("SYSTEM", deployment.get("username").toString());
@@ -307,6 +356,77 @@ public class DeploymentActionTest {
         assertEquals("test-1234", deployment.get("pipelineId"));
     }
 
+    @Test
+    @WithoutJenkins
+    public void writingReportShouldAppendToLog() throws Exception {
+        DeploymentAction action = new DeploymentAction(
+                getMockAbstractBuild(),
+                new HashMap<S3Environment, String>(),
+                new AnonymousAWSCredentials());
+
+        Method method = action.getClass().getDeclaredMethod("writeReport", Date.class, String.class, Boolean.TYPE);
+        method.setAccessible(true);
+
+        method.invoke(action, new Date(), "test-1", true);
+        method.invoke(action, new Date(), "test-2", false);
+
+        File logFile = new File(testFolder.getRoot(), "deployment.log");
+        List<String> jsonContent = Files.readAllLines(logFile.toPath(), Charset.defaultCharset());
+        assertEquals(2, jsonContent.size());
+
+        List<Deployment> deployments = action.getDeployments();
+        assertEquals(2, deployments.size());
+        assertEquals("test-1", deployments.get(0).getPipelineId());
+        assertEquals("test-2", deployments.get(1).getPipelineId());
+
+        List<DeploymentIndex.Entry> indexed = action.getJobDeployments();
+        assertEquals(2, indexed.size());
+        assertEquals("test-2", indexed.get(0).getPipelineId());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void pipelinesShouldBeReadFromManifest() throws Exception {
+        PipelineManifest manifest = new PipelineManifest();
+        manifest.add(new PipelineManifest.Entry("d1-test-1.json", "Development", "2015-01-01T00:00:00", 3));
+        manifest.add(new PipelineManifest.Entry("p2-test-1.json", "Production", "2015-02-01T00:00:00", 3));
+        manifest.write(new File(testFolder.getRoot(), PipelineManifest.FILENAME));
+        testFolder.newFile("d1-test-1.json");
+        testFolder.newFile("p2-test-1.json");
+        DeploymentAction action = new DeploymentAction(
+                getMockAbstractBuild(),
+                new HashMap<S3Environment, String>(),
+                new AnonymousAWSCredentials());
+
+        List<String> pipelines = action.getPipelines();
+
+        assertEquals(2, pipelines.size());
+        assertEquals("d1-test-1.json", pipelines.get(0));
+        assertEquals("p2-test-1.json", pipelines.get(1));
+        assertEquals("2015-01-01T00:00:00", action.getScheduledDate());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void pipelinesDeletedFromArtifactsShouldNotBeListed() throws Exception {
+        PipelineManifest manifest = new PipelineManifest();
+        manifest.add(new PipelineManifest.Entry("d1-test-1.json", "Development", "2015-01-01T00:00:00", 3));
+        manifest.add(new PipelineManifest.Entry("p2-test-1.json", "Production", "2015-02-01T00:00:00", 3));
+        manifest.write(new File(testFolder.getRoot(), PipelineManifest.FILENAME));
+        testFolder.newFile("p2-test-1.json");
+        DeploymentAction action = new DeploymentAction(
+                getMockAbstractBuild(),
+                new HashMap<S3Environment, String>(),
+                new AnonymousAWSCredentials());
+
+        Method method = action.getClass().getDeclaredMethod("getPipelineByName", String.class);
+        method.setAccessible(true);
+
+        assertEquals(Collections.singletonList("p2-test-1.json"), action.getPipelines());
+        assertEquals("2015-02-01T00:00:00", action.getScheduledDate());
+        assertNull(method.invoke(action, "d1-test-1.json"));
+    }
+
     private String executeGetPipelineIdMethod(String pipelineFileName)
             throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         List<PipelineIdName> pipelineList = new ArrayList<PipelineIdName>();
@@ -342,6 +462,11 @@ public class DeploymentActionTest {
         when(project.getName()).thenReturn("test");
         when(build.getArtifacts()).thenReturn(new ArrayList<Run.Artifact>());
         when(build.getArtifactsDir()).thenReturn(testFolder.getRoot());
+        when(project.getRootDir()).thenReturn(testFolder.getRoot());
+        when(build.getRootDir()).thenReturn(testFolder.getRoot());
+        RunList builds = mock(RunList.class);
+        when(builds.iterator()).thenReturn(Collections.singletonList(build).iterator());
+        when(project.getBuilds()).thenReturn(builds);
 
         return build;
     }
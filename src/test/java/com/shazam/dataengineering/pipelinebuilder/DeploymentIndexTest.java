@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import hudson.model.AbstractBuild;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeploymentIndexTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void queryShouldFilterByPipelineAndTime() throws Exception {
+        DeploymentIndex index = new DeploymentIndex(new File(testFolder.getRoot(), DeploymentIndex.INDEX_FILENAME));
+        index.add(1, getDeployment("p1-job-1.json", "id-1", 1000));
+        index.add(2, getDeployment("p2-job-2.json", "id-2", 2000));
+        index.add(3, getDeployment("p1-job-3.json", "id-3", 3000));
+
+        List<DeploymentIndex.Entry> pipeline = index.query("p1-job", null, null);
+        List<DeploymentIndex.Entry> range = index.query(null, new Date(2000), new Date(3000));
+        List<DeploymentIndex.Entry> both = index.query("p1-job-1.json", new Date(2000), null);
+
+        assertEquals(2, pipeline.size());
+        assertEquals("id-1", pipeline.get(0).getPipelineId());
+        assertEquals("id-3", pipeline.get(1).getPipelineId());
+        assertEquals(2, index.query("p1-job-3.json", null, null).size());
+        assertEquals(1, range.size());
+        assertEquals(2, range.get(0).getBuildNumber());
+        assertEquals(1, both.size());
+        assertEquals("id-3", both.get(0).getPipelineId());
+    }
+
+    @Test
+    public void queryShouldOnlyStripBuildNumberFromFileNames() throws Exception {
+        DeploymentIndex index = new DeploymentIndex(new File(testFolder.getRoot(), DeploymentIndex.INDEX_FILENAME));
+        index.add(5, getDeployment("p1-etl-2-5.json", "id-5", 1000));
+        index.add(7, getDeployment("p1-etl-7.json", "id-7", 2000));
+
+        List<DeploymentIndex.Entry> numbered = index.query("p1-etl-2", null, null);
+        List<DeploymentIndex.Entry> plain = index.query("p1-etl", null, null);
+
+        assertEquals(1, numbered.size());
+        assertEquals("id-5", numbered.get(0).getPipelineId());
+        assertEquals(1, plain.size());
+        assertEquals("id-7", plain.get(0).getPipelineId());
+        assertEquals(1, index.query("p1-etl-2-9.json", null, null).size());
+    }
+
+    @Test
+    public void rebuildShouldReadLogsOfAllBuilds() throws Exception {
+        AbstractBuild first = getMockBuild(1, getDeployment("p1-job-1.json", "id-1", 1000),
+                getDeployment("p1-job-1.json", "id-3", 3000));
+        AbstractBuild second = getMockBuild(2, getDeployment("p2-job-2.json", "id-2", 2000));
+        ArrayList<AbstractBuild> builds = new ArrayList<AbstractBuild>();
+        builds.add(second);
+        builds.add(first);
+        DeploymentIndex index = new DeploymentIndex(new File(testFolder.getRoot(), DeploymentIndex.INDEX_FILENAME));
+        index.add(5, getDeployment("stale.json", "stale", 500));
+
+        index.rebuild(builds);
+        List<DeploymentIndex.Entry> entries = index.query(null, null, null);
+
+        assertEquals(3, entries.size());
+        assertEquals("id-1", entries.get(0).getPipelineId());
+        assertEquals("id-2", entries.get(1).getPipelineId());
+        assertEquals(2, entries.get(1).getBuildNumber());
+        assertEquals("id-3", entries.get(2).getPipelineId());
+    }
+
+    @Test
+    public void recordShouldRebuildMissingIndexThenAppend() throws Exception {
+        Deployment first = getDeployment("p1-job-1.json", "id-1", 1000);
+        Deployment second = getDeployment("p1-job-2.json", "id-2", 2000);
+        ArrayList<AbstractBuild> builds = new ArrayList<AbstractBuild>();
+        builds.add(getMockBuild(1, first));
+        DeploymentIndex index = new DeploymentIndex(new File(testFolder.getRoot(), DeploymentIndex.INDEX_FILENAME));
+
+        // The log of the build already holds the deployment
+        index.record(1, first, builds);
+        index.record(2, second, builds);
+        List<DeploymentIndex.Entry> entries = index.query("p1-job", null, null);
+
+        assertEquals(2, entries.size());
+        assertEquals("id-1", entries.get(0).getPipelineId());
+        assertEquals("id-2", entries.get(1).getPipelineId());
+        assertEquals(2, entries.get(1).getBuildNumber());
+    }
+
+    private AbstractBuild getMockBuild(int number, Deployment... deployments) throws Exception {
+        File artifactsDir = testFolder.newFolder("build-" + number);
+        for (Deployment deployment : deployments) {
+            DeploymentLog.append(new File(artifactsDir, "deployment.log"), deployment);
+        }
+
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getNumber()).thenReturn(number);
+        when(build.getArtifactsDir()).thenReturn(artifactsDir);
+
+        return build;
+    }
+
+    private Deployment getDeployment(String pipelineFile, String pipelineId, long time) {
+        return new Deployment("test", true, pipelineFile, pipelineId, new Date(time), new ArrayList<String>());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeploymentLogTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void appendShouldWriteOneLinePerDeployment() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+
+        DeploymentLog.append(file, getDeployment("test-1"));
+        DeploymentLog.append(file, getDeployment("test-2"));
+
+        assertEquals(2, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+        List<Deployment> deployments = DeploymentLog.read(file);
+        assertEquals(2, deployments.size());
+        assertEquals("test-1", deployments.get(0).getPipelineId());
+        assertEquals("test-2", deployments.get(1).getPipelineId());
+    }
+
+    @Test
+    public void readShouldSupportLegacyLog() throws Exception {
+        File file = writeLegacyLog("test-1", "test-2");
+
+        List<Deployment> deployments = DeploymentLog.read(file);
+
+        assertEquals(2, deployments.size());
+        assertEquals("test-1", deployments.get(0).getPipelineId());
+        assertEquals("test-2", deployments.get(1).getPipelineId());
+    }
+
+    @Test
+    public void appendShouldConvertLegacyLog() throws Exception {
+        File file = writeLegacyLog("test-1", "test-2");
+
+        DeploymentLog.append(file, getDeployment("test-3"));
+
+        assertEquals(3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+        List<Deployment> deployments = DeploymentLog.read(file);
+        assertEquals(3, deployments.size());
+        assertEquals("test-1", deployments.get(0).getPipelineId());
+        assertEquals("test-3", deployments.get(2).getPipelineId());
+    }
+
+    @Test
+    public void readTailShouldReturnLatestDeployments() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        for (int i = 0; i < 500; i++) {
+            DeploymentLog.append(file, getDeployment("test-" + i));
+        }
+
+        List<Deployment> deployments = DeploymentLog.readTail(file, 3);
+
+        assertEquals(3, deployments.size());
+        assertEquals("test-497", deployments.get(0).getPipelineId());
+        assertEquals("test-499", deployments.get(2).getPipelineId());
+        assertEquals(500, DeploymentLog.readTail(file, 1000).size());
+    }
+
+    @Test
+    public void readTailShouldSupportLegacyLog() throws Exception {
+        File file = writeLegacyLog("test-1", "test-2", "test-3");
+
+        List<Deployment> deployments = DeploymentLog.readTail(file, 2);
+
+        assertEquals(2, deployments.size());
+        assertEquals("test-2", deployments.get(0).getPipelineId());
+        assertEquals("test-3", deployments.get(1).getPipelineId());
+    }
+
+    @Test
+    public void readShouldSkipIncompleteLines() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        DeploymentLog.append(file, getDeployment("test-1"));
+        Files.write(file.toPath(), "{\"username\":\"te".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        assertEquals(1, DeploymentLog.read(file).size());
+        assertEquals(1, DeploymentLog.readTail(file, 5).size());
+    }
+
+    @Test
+    public void readHistoryShouldPageNewestFirstWithoutMessages() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        for (int i = 0; i < 500; i++) {
+            DeploymentLog.append(file, getDeployment("test-" + i));
+        }
+
+        List<Deployment> page = DeploymentLog.readHistory(file, 10, 5);
+
+        assertEquals(5, page.size());
+        assertEquals("test-489", page.get(0).getPipelineId());
+        assertEquals("test-485", page.get(4).getPipelineId());
+        assertTrue(page.get(0).isSummary());
+        assertNull(page.get(0).getMessages());
+        assertEquals(0, DeploymentLog.readHistory(file, 500, 5).size());
+    }
+
+    @Test
+    public void readHistoryShouldSkipLinesCutShortInMessages() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        DeploymentLog.append(file, getDeployment("test-1"));
+        String complete = getDeployment("test-2").toJSONString();
+        Files.write(file.toPath(), complete.substring(0, complete.length() - 5).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        List<Deployment> history = DeploymentLog.readHistory(file, 0, 5);
+
+        assertEquals(1, history.size());
+        assertEquals("test-1", history.get(0).getPipelineId());
+        assertNotNull(DeploymentLog.readAt(file, history.get(0).getPosition()));
+    }
+
+    @Test
+    public void readAtShouldLoadMessagesOfSummary() throws Exception {
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        for (int i = 0; i < 3; i++) {
+            DeploymentLog.append(file, getDeployment("test-" + i));
+        }
+
+        Deployment summary = DeploymentLog.readHistory(file, 1, 1).get(0);
+        Deployment deployment = DeploymentLog.readAt(file, summary.getPosition());
+
+        assertEquals("test-1", deployment.getPipelineId());
+        assertEquals(1, deployment.getMessages().size());
+        assertEquals("[INFO] test-1", deployment.getMessages().get(0));
+        assertNull(DeploymentLog.readAt(file, summary.getPosition() + 1));
+    }
+
+    @Test
+    public void readHistoryShouldReadLegacyLogWithoutConvertingIt() throws Exception {
+        File file = writeLegacyLog("test-1", "test-2", "test-3");
+        byte[] legacy = Files.readAllBytes(file.toPath());
+
+        List<Deployment> history = DeploymentLog.readHistory(file, 1, 5);
+
+        assertEquals(2, history.size());
+        assertEquals("test-2", history.get(0).getPipelineId());
+        assertEquals("test-1", history.get(1).getPipelineId());
+        assertTrue(history.get(0).isSummary());
+        assertEquals(-1, history.get(0).getPosition());
+        assertArrayEquals(legacy, Files.readAllBytes(file.toPath()));
+    }
+
+    private File writeLegacyLog(String... pipelineIds) throws Exception {
+        DeploymentLog log = new DeploymentLog();
+        for (String pipelineId : pipelineIds) {
+            log.add(getDeployment(pipelineId));
+        }
+
+        File file = new File(testFolder.getRoot(), "deployment.log");
+        Files.write(file.toPath(), log.serialize().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private Deployment getDeployment(String pipelineId) {
+        ArrayList<String> messages = new ArrayList<String>();
+        messages.add("[INFO] " + pipelineId);
+        return new Deployment("test", true, pipelineId, new Date(), messages);
+    }
+}
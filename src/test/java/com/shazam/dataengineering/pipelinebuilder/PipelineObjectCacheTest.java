@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Shazam Entertainment Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License
+ */
+package com.shazam.dataengineering.pipelinebuilder;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PipelineObjectCacheTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void getShouldParseOnlyOnce() throws Exception {
+        PipelineObjectCache cache = new PipelineObjectCache(PipelineObjectCache.DEFAULT_MAX_BYTES);
+        File file = new File("src/test/resources/pipeline3.json");
+
+        PipelineObject first = cache.get(file);
+        PipelineObject second = cache.get(file);
+
+        assertTrue(first.isValid());
+        assertEquals(first.getJson(), second.getJson());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void getShouldReturnIndependentCopies() throws Exception {
+        PipelineObjectCache cache = new PipelineObjectCache(PipelineObjectCache.DEFAULT_MAX_BYTES);
+        File file = new File("src/test/resources/pipeline1.json");
+
+        PipelineObject first = cache.get(file);
+        first.setScheduleDate("2014-08-22T03:45:10");
+        PipelineObject second = cache.get(file);
+
+        assertNotSame(first, second);
+        assertEquals("2014-07-26T01:20:00", second.getScheduleDate());
+    }
+
+    @Test
+    public void changedFileShouldBeParsedAgain() throws Exception {
+        PipelineObjectCache cache = new PipelineObjectCache(PipelineObjectCache.DEFAULT_MAX_BYTES);
+        File file = testFolder.newFile("pipeline.json");
+        new FilePath(file).write("{\"objects\":[{\"id\":\"a\"}]}", "UTF-8");
+        file.setLastModified(1000);
+        assertEquals(1, cache.get(file).getObjectCount());
+
+        new FilePath(file).write("{\"objects\":[{\"id\":\"a\"},{\"id\":\"b\"}]}", "UTF-8");
+        file.setLastModified(2000);
+
+        assertEquals(2, cache.get(file).getObjectCount());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void invalidFileShouldNotBeCached() throws Exception {
+        PipelineObjectCache cache = new PipelineObjectCache(PipelineObjectCache.DEFAULT_MAX_BYTES);
+        File file = testFolder.newFile("script.sh");
+        new FilePath(file).write("echo 1", "UTF-8");
+
+        assertFalse(cache.get(file).isValid());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedShouldBeEvictedOverSizeLimit() throws Exception {
+        File first = new File("src/test/resources/pipeline1.json");
+        File second = new File("src/test/resources/pipeline2.json");
+        File third = new File("src/test/resources/pipeline3.json");
+        PipelineObjectCache cache = new PipelineObjectCache(
+                Math.max(first.length() + third.length(), second.length() + third.length()));
+
+        cache.get(first);
+        cache.get(second);
+        cache.get(first);
+        cache.get(third);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        cache.get(first);
+        assertEquals(2, cache.getHits());
+    }
+}
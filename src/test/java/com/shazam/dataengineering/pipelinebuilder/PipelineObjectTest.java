@@ -22,10 +22,13 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.StringReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import static junit.framework.Assert.*;
@@ -39,6 +42,25 @@ public class PipelineObjectTest {
         assertTrue(obj.isValid());
     }
 
+    @Test
+    public void nonObjectJsonShouldBeInvalid() throws Exception {
+        PipelineObject obj = new PipelineObject("[{\"id\": \"Default\"}]");
+
+        assertFalse(obj.isValid());
+        assertNotNull(obj.getError());
+    }
+
+    @Test
+    public void trailingContentShouldBeInvalid() throws Exception {
+        PipelineObject obj = new PipelineObject("{\"objects\": []} garbage");
+        PipelineObject reader = new PipelineObject(new StringReader("{\"objects\": []} {}"));
+
+        assertFalse(obj.isValid());
+        assertNotNull(obj.getError());
+        assertFalse(reader.isValid());
+        assertTrue(new PipelineObject("{\"objects\": []}\n").isValid());
+    }
+
     @Test
     public void pipeline1shouldReParseIntoTheSameText() throws Exception {
         String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline1.json")), "UTF-8");
@@ -65,6 +87,19 @@ public class PipelineObjectTest {
         assertEquals(validation.getJson(), obj.getJson());
     }
 
+    @Test
+    public void copyShouldNotChangeWithOriginal() throws Exception {
+        String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline3.json")), "UTF-8");
+        PipelineObject obj = new PipelineObject(json);
+
+        PipelineObject copy = new PipelineObject(obj);
+        obj.setScheduleDate("2014-08-22T03:45:10");
+
+        assertEquals(new PipelineObject(json).getJson(), copy.getJson());
+        assertEquals(obj.getTypes(), copy.getTypes());
+        assertEquals(obj.getObjectCount(), copy.getObjectCount());
+    }
+
     @Test
     public void pipeline2shouldPlaceEMRStepsInSameOrder() throws Exception {
         String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline2.json")), "UTF-8");
@@ -115,6 +150,104 @@ public class PipelineObjectTest {
         }
     }
 
+    @Test
+    public void pipeline3shouldIndexObjectsByIdAndType() throws Exception {
+        String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline3.json")), "UTF-8");
+        PipelineObject obj = new PipelineObject(json);
+
+        assertEquals("SQL Query", obj.getById("ActivityId_456").getName());
+        assertNull(obj.getById("MissingId"));
+        assertEquals(1, obj.getObjectsByType("Schedule").size());
+        assertEquals("ScheduleId_234", obj.getObjectsByType("Schedule").get(0).getId());
+        assertTrue(obj.getObjectsByType("MissingType").isEmpty());
+    }
+
+    @Test
+    public void pipeline3shouldIndexReferencesInBothDirections() throws Exception {
+        String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline3.json")), "UTF-8");
+        PipelineObject obj = new PipelineObject(json);
+
+        List<PipelineObject.Reference> toDatabase = obj.getReferencesTo("RedshiftDatabaseId_123");
+        assertEquals(2, toDatabase.size());
+        assertEquals("ActivityId_456", toDatabase.get(0).getFrom());
+        assertEquals("ActivityId_567", toDatabase.get(1).getFrom());
+        assertEquals("database", toDatabase.get(0).getKey());
+
+        boolean found = false;
+        for (PipelineObject.Reference reference : obj.getReferencesFrom("ActivityId_345")) {
+            found |= reference.getKey().equals("runsOn") && reference.getTo().equals("EmrClusterId_678");
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void awsObjectsShouldBeConvertedAgainOnlyAfterScheduleChange() throws Exception {
+        String json = IOUtils.toString(new FileInputStream(new File("src/test/resources/pipeline1.json")), "UTF-8");
+        PipelineObject obj = new PipelineObject(json);
+
+        List<com.amazonaws.services.datapipeline.model.PipelineObject> first = obj.getAWSObjects();
+        assertSame(first, obj.getAWSObjects());
+
+        obj.setScheduleDate("2014-08-22T03:45:10");
+        List<com.amazonaws.services.datapipeline.model.PipelineObject> updated = obj.getAWSObjects();
+
+        assertNotSame(first, updated);
+        boolean found = false;
+        for (com.amazonaws.services.datapipeline.model.PipelineObject awsObject : updated) {
+            found |= awsObject.getFields().contains(
+                    new Field().withKey("startDateTime").withStringValue("2014-08-22T03:45:10"));
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void setScheduleDateShouldShiftAllSchedulesFromTheEarliest() throws Exception {
+        PipelineObject obj = new PipelineObject("{\"objects\": [" +
+                "{\"id\": \"Hourly\", \"type\": \"Schedule\", \"startDateTime\": \"2014-07-26T03:00:00\"}," +
+                "{\"id\": \"Daily\", \"type\": \"Schedule\", \"startDateTime\": \"2014-07-26T01:20:00\"}," +
+                "{\"id\": \"Once\", \"type\": \"Schedule\", \"startAt\": \"FIRST_ACTIVATION_DATE_TIME\"}]}");
+        assertEquals("2014-07-26T01:20:00", obj.getScheduleDate());
+
+        obj.setScheduleDate("2014-08-22T00:00:00");
+
+        Map<String, String> dates = obj.getScheduleDates();
+        assertEquals(2, dates.size());
+        assertEquals("2014-08-22T01:40:00", dates.get("Hourly"));
+        assertEquals("2014-08-22T00:00:00", dates.get("Daily"));
+        for (Field field : obj.getById("Once").getFields()) {
+            assertFalse(field.getKey().equals("startDateTime"));
+        }
+    }
+
+    @Test
+    public void setScheduleDatesShouldOnlySetNamedSchedules() throws Exception {
+        PipelineObject obj = new PipelineObject("{\"objects\": [" +
+                "{\"id\": \"First\", \"type\": \"Schedule\", \"startDateTime\": \"2014-07-26T03:00:00\"}," +
+                "{\"id\": \"Second\", \"type\": \"Schedule\", \"startDateTime\": \"2014-07-26T01:20:00\"}]}");
+        HashMap<String, String> dates = new HashMap<String, String>();
+        dates.put("Second", "2014-08-22T03:45:10");
+        dates.put("Missing", "2014-08-22T03:45:10");
+
+        obj.setScheduleDates(dates);
+
+        assertEquals("2014-07-26T03:00:00", obj.getScheduleDates().get("First"));
+        assertEquals("2014-08-22T03:45:10", obj.getScheduleDates().get("Second"));
+    }
+
+    @Test
+    public void onDemandPipelineShouldHaveNoScheduleDate() throws Exception {
+        PipelineObject obj = new PipelineObject("{\"objects\": [" +
+                "{\"id\": \"Default\", \"scheduleType\": \"ondemand\"}," +
+                "{\"id\": \"Daily\", \"type\": \"Schedule\", \"startDateTime\": \"2014-07-26T01:20:00\"}]}");
+        String json = obj.getJson();
+
+        obj.setScheduleDate("2014-08-22T03:45:10");
+
+        assertTrue(obj.isOnDemand());
+        assertEquals("", obj.getScheduleDate());
+        assertEquals(json, obj.getJson());
+    }
+
     @Test
     public void validateDateShouldValidateProperDate() throws Exception {
         assertTrue(PipelineObject.validateDate("2014-07-26T01:20:00"));
@@ -133,6 +266,18 @@ public class PipelineObjectTest {
         assertFalse(PipelineObject.validateDate(dateFormat.format(epoch)));
     }
 
+    @Test
+    public void getDateShouldMatchSimpleDateFormat() throws Exception {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(PipelineObject.PIPELINE_DATE_FORMAT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String[] dates = {"2014-07-26T01:20:00", "2016-02-29T23:59:59", "2100-03-01T00:00:00",
+                "2014-02-30T00:00:00", "2014-7-6T1:2:3"};
+
+        for (String date : dates) {
+            assertEquals(date, dateFormat.parse(date), PipelineObject.getDate(date));
+        }
+    }
+
     @Test
     public void isPastShouldReturnTrueForDatesInThePast() throws Exception {
         Date past = new Date(1400000000L * 1000);
@@ -15,18 +15,31 @@
  */
 package com.shazam.dataengineering.pipelinebuilder;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.WithoutJenkins;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -36,6 +49,9 @@ public class PipelineProcessorTest {
     @Rule
     public JenkinsRule jenkins = new JenkinsRule();
 
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
     @Test
     @WithoutJenkins
     public void pipelineProcessorShouldSubstituteCorrectly() throws Exception {
@@ -63,19 +79,38 @@ public class PipelineProcessorTest {
 
     @Test
     @WithoutJenkins
-    public void performSubstitutionsShouldSubstitutePlaceholders() throws Exception {
+    public void getSubstitutionsShouldSubstitutePlaceholders() throws Exception {
         PipelineProcessor processor = getDefaultPipelineProcessor();
 
-        Method method = processor.getClass().getDeclaredMethod("performSubstitutions",
-                String.class, String.class, Environment.class);
+        Method method = processor.getClass().getDeclaredMethod("getSubstitutions",
+                CompiledTemplate.class, String.class, Environment.class);
         method.setAccessible(true);
 
         Environment env = new Environment("test", "key1: value1\nkey2: value2\n$key3: $value3");
         String json = "{\"object1\":\"${key1}\", \"object2\":\"${$key3}\", \"object3\":\"${key4}\"}";
         String expected = "{\"object1\":\"value1\", \"object2\":\"$value3\", \"object3\":\"${key4}\"}";
 
-        String result = (String) method.invoke(processor, json, "", env);
-        assertEquals(expected, result);
+        CompiledTemplate template = CompiledTemplate.compile(json);
+        Map<String, String> substitutions = (Map<String, String>) method.invoke(processor, template, "", env);
+        assertEquals(expected, template.render(substitutions));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void getSubstitutionsShouldResolveTokensInsideReplacedValues() throws Exception {
+        PipelineProcessor processor = getDefaultPipelineProcessor();
+
+        Method method = processor.getClass().getDeclaredMethod("getSubstitutions",
+                CompiledTemplate.class, String.class, Environment.class);
+        method.setAccessible(true);
+
+        Environment env = new Environment("test", "key1: ${key2}\nkey2: value2");
+        String json = "{\"object1\":\"${key1}\", \"object2\":\"${key2}${key2}\", \"object3\":\"${key2\"}";
+        String expected = "{\"object1\":\"value2\", \"object2\":\"value2value2\", \"object3\":\"${key2\"}";
+
+        CompiledTemplate template = CompiledTemplate.compile(json);
+        Map<String, String> substitutions = (Map<String, String>) method.invoke(processor, template, "", env);
+        assertEquals(expected, template.render(substitutions));
     }
 
     @Test
@@ -83,16 +118,39 @@ public class PipelineProcessorTest {
     public void unreplacedKeysShouldGenerateAWarning() throws Exception {
         PipelineProcessor processor = getDefaultPipelineProcessor();
         String json = "{\"object1\":\"${key1}\", \"object2\":\"${$key3}\", \"object3\":\"${key4}\"}";
+        Map<String, String> substitutions = new HashMap<String, String>();
 
-        Method method = processor.getClass().getDeclaredMethod("warnForUnreplacedKeys", String.class);
+        Method method = processor.getClass().getDeclaredMethod("warnForUnreplacedKeys",
+                CompiledTemplate.class, Map.class);
         method.setAccessible(true);
 
-        List<String> warnings = (List<String>) method.invoke(processor, json);
+        List<String> warnings = (List<String>) method.invoke(processor, CompiledTemplate.compile(json), substitutions);
 
         assertEquals(3, warnings.size());
         assertEquals("Unreplaced token found in pipeline object: ${key1}", warnings.get(0));
     }
 
+    @Test
+    @WithoutJenkins
+    public void unresolvedTokensInsideValuesShouldGenerateAWarning() throws Exception {
+        PipelineProcessor processor = getDefaultPipelineProcessor();
+
+        Method substitute = processor.getClass().getDeclaredMethod("getSubstitutions",
+                CompiledTemplate.class, String.class, Environment.class);
+        substitute.setAccessible(true);
+        Method warn = processor.getClass().getDeclaredMethod("warnForUnreplacedKeys",
+                CompiledTemplate.class, Map.class);
+        warn.setAccessible(true);
+
+        Environment env = new Environment("test", "key1: ${key2}\nkey2: ${key1}");
+        CompiledTemplate template = CompiledTemplate.compile("{\"object1\":\"${key1}\"}");
+        Map<String, String> substitutions = (Map<String, String>) substitute.invoke(processor, template, "", env);
+        List<String> warnings = (List<String>) warn.invoke(processor, template, substitutions);
+
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).startsWith("Unreplaced token found in value of key1: "));
+    }
+
     @Test
     @WithoutJenkins
     public void inliningShouldProduceValidJson() throws Exception {
@@ -144,6 +202,257 @@ public class PipelineProcessorTest {
         assertTrue(pipelineObject.isValid());
     }
 
+    @Test
+    @WithoutJenkins
+    public void parallelProcessingShouldWriteEveryEnvironment() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{
+                new DevelopmentEnvironment("Development", "key: value"),
+                new ProductionEnvironment("Production", "key: value"),
+                new ProductionEnvironment("Production", "key: value")
+        });
+        processor.setParallel(true);
+
+        assertTrue(processor.process(new FilePath(new File("src/test/resources/pipeline3.json"))));
+
+        File artifacts = build.getArtifactsDir();
+        assertTrue(new File(artifacts, "d1-test-42.json").exists());
+        assertTrue(new File(artifacts, "p2-test-42.json").exists());
+        assertTrue(new File(artifacts, "p3-test-42.json").exists());
+        assertTrue(new File(artifacts, "p3-test-42.dot").exists());
+
+        List<PipelineManifest.Entry> entries =
+                PipelineManifest.read(new File(testFolder.getRoot(), PipelineManifest.FILENAME)).getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("d1-test-42.json", entries.get(0).getFileName());
+        assertEquals("Development", entries.get(0).getEnvironment());
+        assertEquals("p3-test-42.json", entries.get(2).getFileName());
+        assertEquals(new PipelineObject(new FilePath(new File(artifacts, "p3-test-42.json")).readToString())
+                .getObjectCount(), entries.get(2).getObjectCount());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void invalidEnvironmentShouldNotBeWrittenNorStopOtherEnvironments() throws Exception {
+        for (boolean parallel : new boolean[]{false, true}) {
+            AbstractBuild build = getMockAbstractBuild();
+            Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts-" + parallel));
+            Mockito.when(build.getRootDir()).thenReturn(testFolder.newFolder("build-" + parallel));
+            PipelineProcessor processor = new PipelineProcessor(build,
+                    Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+            processor.setEnvironments(new Environment[]{
+                    new DevelopmentEnvironment("Development", "table: \"broken"),
+                    new ProductionEnvironment("Production", "table: prod")
+            });
+            processor.setParallel(parallel);
+
+            FilePath input = new FilePath(testFolder.newFile("pipeline-" + parallel + ".json"));
+            input.write("{\"objects\":[{\"id\":\"Sql\",\"table\":\"${table}\"}]}", "UTF-8");
+
+            assertFalse(processor.process(input));
+
+            File artifacts = build.getArtifactsDir();
+            assertFalse(new File(artifacts, "d1-test-42.json").exists());
+            assertTrue(new File(artifacts, "p2-test-42.json").exists());
+            List<PipelineManifest.Entry> entries =
+                    PipelineManifest.read(new File(build.getRootDir(), PipelineManifest.FILENAME)).getEntries();
+            assertEquals(1, entries.size());
+            assertEquals("p2-test-42.json", entries.get(0).getFileName());
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    public void processShouldInlineMultilineStringsForEveryEnvironment() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{
+                new DevelopmentEnvironment("Development", "table: dev"),
+                new ProductionEnvironment("Production", "table: prod")
+        });
+
+        FilePath input = new FilePath(testFolder.newFile("pipeline.json"));
+        input.write("{\"objects\":[{\"id\":\"Sql\",\"script\":\"\"\"SELECT 1\nFROM ${table};\"\"\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+
+        File artifacts = build.getArtifactsDir();
+        assertEquals("{\"objects\":[{\"id\":\"Sql\",\"script\":\"SELECT 1FROM dev;\"}]}",
+                new FilePath(new File(artifacts, "d1-test-42.json")).readToString());
+        assertEquals("{\"objects\":[{\"id\":\"Sql\",\"script\":\"SELECT 1FROM prod;\"}]}",
+                new FilePath(new File(artifacts, "p2-test-42.json")).readToString());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void processShouldArchiveScriptsFoundInWorkspace() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        File workspace = testFolder.newFolder("workspace");
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        Mockito.when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+        new FilePath(workspace).child("node_modules/ignored.sh").write("ignored", "UTF-8");
+        new FilePath(workspace).child("src/main/script.sh").write("echo 1", "UTF-8");
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{new ProductionEnvironment("Production", "key: value")});
+        processor.setS3Prefix("s3://bucket/scripts/");
+
+        FilePath input = new FilePath(workspace).child("pipeline.json");
+        input.write("{\"objects\":[{\"id\":\"a\",\"command\":\"${script.sh}\",\"other\":\"${ignored.sh}\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+
+        File artifacts = build.getArtifactsDir();
+        assertEquals("echo 1", new FilePath(new File(artifacts, "scripts/script.sh")).readToString());
+        assertFalse(new File(artifacts, "scripts/ignored.sh").exists());
+        assertEquals(DigestUtils.md5Hex("echo 1"), processor.getScriptDigests().get("script.sh"));
+        assertEquals("{\"objects\":[{\"id\":\"a\",\"command\":\"s3://bucket/scripts/" + DigestUtils.md5Hex("echo 1")
+                        + "/script.sh\",\"other\":\"${ignored.sh}\"}]}",
+                new FilePath(new File(artifacts, "p1-test-42.json")).readToString());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void nextBuildWithSameScriptsShouldFindThemAlreadyUploaded() throws Exception {
+        Map<String, String> firstDigests = new HashMap<String, String>();
+        Map<S3Environment, String> firstUrls = processScriptBuild(42, "echo 1", firstDigests);
+        Map<String, String> nextDigests = new HashMap<String, String>();
+        Map<S3Environment, String> nextUrls = processScriptBuild(43, "echo 1", nextDigests);
+
+        // S3 as left by deploying the first build
+        AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+        ObjectListing listing = new ObjectListing();
+        for (Map.Entry<S3Environment, String> url : firstUrls.entrySet()) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName("bucket");
+            summary.setKey(url.getValue().substring("s3://bucket/".length()));
+            summary.setETag(firstDigests.get(url.getKey().scriptName));
+            listing.getObjectSummaries().add(summary);
+        }
+        Mockito.when(s3.listObjects(Mockito.eq("bucket"), Mockito.anyString())).thenReturn(listing);
+
+        HashMap<String, String> urlDigests = new HashMap<String, String>();
+        for (Map.Entry<S3Environment, String> url : nextUrls.entrySet()) {
+            urlDigests.put(url.getValue(), nextDigests.get(url.getKey().scriptName));
+        }
+
+        assertEquals(1, urlDigests.size());
+        assertEquals(urlDigests.keySet(), AWSProxy.getUnchangedS3Urls(s3, urlDigests));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void nextBuildWithChangedScriptsShouldNotOverwriteDeployedOnes() throws Exception {
+        Map<S3Environment, String> firstUrls = processScriptBuild(42, "echo 1", new HashMap<String, String>());
+        Map<S3Environment, String> nextUrls = processScriptBuild(43, "echo 2", new HashMap<String, String>());
+
+        assertEquals(1, nextUrls.size());
+        assertFalse(firstUrls.values().containsAll(nextUrls.values()));
+        assertEquals("s3://bucket/scripts/" + DigestUtils.md5Hex("echo 2") + "/script.sh",
+                nextUrls.values().iterator().next());
+    }
+
+    @Test
+    @WithoutJenkins
+    public void processShouldArchiveScriptsFromFingerprintedUpstreamBuild() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        File workspace = testFolder.newFolder("workspace");
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        Mockito.when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+
+        File upstreamJar = testFolder.newFile("job.jar");
+        new FilePath(upstreamJar).write("jar 7", "UTF-8");
+        Run.Artifact artifact = Mockito.mock(Run.Artifact.class);
+        Mockito.when(artifact.getFileName()).thenReturn("job.jar");
+        Mockito.when(artifact.getFile()).thenReturn(upstreamJar);
+        AbstractBuild upstreamBuild = Mockito.mock(AbstractBuild.class);
+        Mockito.when(upstreamBuild.getArtifacts()).thenReturn(Collections.singletonList(artifact));
+        AbstractProject upstreamProject = Mockito.mock(AbstractProject.class);
+        Mockito.when(upstreamProject.getBuildByNumber(7)).thenReturn(upstreamBuild);
+        Mockito.when(build.getUpstreamBuilds()).thenReturn(Collections.singletonMap(upstreamProject, 7));
+
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{new ProductionEnvironment("Production", "key: value")});
+        processor.setS3Prefix("s3://bucket/scripts/");
+
+        FilePath input = new FilePath(workspace).child("pipeline.json");
+        input.write("{\"objects\":[{\"id\":\"a\",\"step\":\"${job.jar}\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+
+        assertEquals("jar 7", new FilePath(new File(build.getArtifactsDir(), "scripts/job.jar")).readToString());
+        Mockito.verify(upstreamProject, Mockito.never()).getLastBuild();
+    }
+
+    @Test
+    @WithoutJenkins
+    public void processShouldCopyScriptsWithPatternCharactersOneByOne() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        File workspace = testFolder.newFolder("workspace");
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        Mockito.when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+        new FilePath(workspace).child("dir with space/spaced.sh").write("echo 1", "UTF-8");
+        new FilePath(workspace).child("src/batched.sh").write("echo 2", "UTF-8");
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{new ProductionEnvironment("Production", "key: value")});
+        processor.setS3Prefix("s3://bucket/scripts/");
+
+        FilePath input = new FilePath(workspace).child("pipeline.json");
+        input.write("{\"objects\":[{\"id\":\"a\",\"one\":\"${spaced.sh}\",\"two\":\"${batched.sh}\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+
+        File scripts = new File(build.getArtifactsDir(), "scripts");
+        assertEquals("echo 1", new FilePath(new File(scripts, "spaced.sh")).readToString());
+        assertEquals("echo 2", new FilePath(new File(scripts, "batched.sh")).readToString());
+        assertEquals(2, scripts.list().length);
+        for (String file : testFolder.getRoot().list()) {
+            assertFalse(file.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    public void processShouldReportScriptsFailingToCopyAndContinue() throws Exception {
+        AbstractBuild build = getMockAbstractBuild();
+        File workspace = testFolder.newFolder("workspace");
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts"));
+        Mockito.when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+        new FilePath(workspace).child("script.sh").write("echo 1", "UTF-8");
+
+        Run.Artifact artifact = Mockito.mock(Run.Artifact.class);
+        Mockito.when(artifact.getFileName()).thenReturn("job.jar");
+        Mockito.when(artifact.getFile()).thenReturn(new File(testFolder.getRoot(), "missing.jar"));
+        AbstractBuild upstreamBuild = Mockito.mock(AbstractBuild.class);
+        Mockito.when(upstreamBuild.getArtifacts()).thenReturn(Collections.singletonList(artifact));
+        AbstractProject upstreamProject = Mockito.mock(AbstractProject.class);
+        Mockito.when(upstreamProject.getBuildByNumber(7)).thenReturn(upstreamBuild);
+        Mockito.when(build.getUpstreamBuilds()).thenReturn(Collections.singletonMap(upstreamProject, 7));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(log, StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{new ProductionEnvironment("Production", "key: value")});
+        processor.setS3Prefix("s3://bucket/scripts/");
+
+        FilePath input = new FilePath(workspace).child("pipeline.json");
+        input.write("{\"objects\":[{\"id\":\"a\",\"step\":\"${job.jar}\",\"command\":\"${script.sh}\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+
+        assertTrue(log.toString("UTF-8").contains("Error in archiving script job.jar"));
+        String output = new FilePath(new File(build.getArtifactsDir(), "p1-test-42.json")).readToString();
+        assertTrue(output.contains("${job.jar}"));
+        assertTrue(output.contains("s3://bucket/scripts/"));
+    }
+
     private PipelineProcessor getDefaultPipelineProcessor() {
         BuildListener listener = Mockito.mock(BuildListener.class);
         Launcher launcher = Mockito.mock(Launcher.class);
@@ -151,12 +460,38 @@ public class PipelineProcessorTest {
         return processor;
     }
 
+    private Map<S3Environment, String> processScriptBuild(int number, String script, Map<String, String> digests)
+            throws Exception {
+        AbstractBuild build = getMockAbstractBuild(number);
+        File workspace = testFolder.newFolder("workspace" + number);
+        Mockito.when(build.getArtifactsDir()).thenReturn(testFolder.newFolder("artifacts" + number));
+        Mockito.when(build.getRootDir()).thenReturn(testFolder.newFolder("build" + number));
+        Mockito.when(build.getWorkspace()).thenReturn(new FilePath(workspace));
+        new FilePath(workspace).child("script.sh").write(script, "UTF-8");
+        PipelineProcessor processor = new PipelineProcessor(build,
+                Mockito.mock(Launcher.class), new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        processor.setEnvironments(new Environment[]{new ProductionEnvironment("Production", "key: value")});
+        processor.setS3Prefix("s3://bucket/scripts/");
+
+        FilePath input = new FilePath(workspace).child("pipeline.json");
+        input.write("{\"objects\":[{\"id\":\"a\",\"command\":\"${script.sh}\"}]}", "UTF-8");
+
+        assertTrue(processor.process(input));
+        digests.putAll(processor.getScriptDigests());
+        return processor.getS3Urls();
+    }
+
     private AbstractBuild getMockAbstractBuild() {
+        return getMockAbstractBuild(42);
+    }
+
+    private AbstractBuild getMockAbstractBuild(int number) {
         AbstractBuild build = Mockito.mock(AbstractBuild.class);
         AbstractProject project = Mockito.mock(AbstractProject.class);
         Mockito.when(build.getProject()).thenReturn(project);
         Mockito.when(project.getName()).thenReturn("test");
-        Mockito.when(build.getNumber()).thenReturn(42);
+        Mockito.when(build.getNumber()).thenReturn(number);
+        Mockito.when(build.getRootDir()).thenReturn(testFolder.getRoot());
         return build;
     }
 }